@@ -10,6 +10,8 @@ import javax.validation.constraints.Digits;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * JPA entity representing the company details
  * @author regen
@@ -34,11 +36,26 @@ public class Company {
 	private String number;
 	
 	private LocalDate createdDate;
+
+	// Position in the consumer group log, if the company was added while groups were registered
+	@JsonIgnore
+	private Long logOffset;
+
+	// Taken from the queue but still held in the backing store for consumer groups
+	@JsonIgnore
+	private boolean consumed;
 	
 	public Company() {
 		this.createdDate = LocalDate.now();
 	}
 
+    public Company(final String name, final String description, final String number) {
+        this();
+        this.name = name;
+        this.description = description;
+        this.number = number;
+    }
+
     public Company(final long id, final String name, final String description, final String number) {
         this.id = id;
         this.name = name;
@@ -65,4 +82,20 @@ public class Company {
 	public LocalDate getCreatedDate() {
 		return createdDate;
 	}
+
+	public Long getLogOffset() {
+		return logOffset;
+	}
+
+	public void setLogOffset(final Long logOffset) {
+		this.logOffset = logOffset;
+	}
+
+	public boolean isConsumed() {
+		return consumed;
+	}
+
+	public void setConsumed(final boolean consumed) {
+		this.consumed = consumed;
+	}
 }
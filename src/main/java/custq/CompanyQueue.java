@@ -0,0 +1,405 @@
+package custq;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO queue of companies guarded by a single lock. Behaves as an ArrayBlockingQueue
+ * but also allows a consumer to wait for a minimum number of entries and then drain a batch
+ * in the same lock acquisition.
+ * 
+ * Asynchronous callers are parked as futures rather than threads: a waiting taker is handed the
+ * next company directly as it is offered and a waiting putter is admitted as soon as space appears.
+ * Futures are always completed after the lock has been released.
+ * 
+ * The browse index is updated as entries are enqueued and dequeued, under the same lock, so that it
+ * always reflects exactly what is queued and in queue order.
+ * @author regen
+ *
+ */
+public class CompanyQueue {
+
+	private final ArrayDeque<Company> items = new ArrayDeque<>();
+
+	private final QIndex index;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition enough = lock.newCondition();
+
+	private int capacity;
+
+	private int batchWaiters = 0;
+
+	private final ArrayDeque<CompletableFuture<Company>> takers = new ArrayDeque<>();
+
+	private final ArrayDeque<PendingOffer> putters = new ArrayDeque<>();
+
+	public CompanyQueue(final int capacity) {
+		this(capacity, new QIndex());
+	}
+
+	public CompanyQueue(final int capacity, final QIndex index) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("A capacity must be greater than 0");
+
+		this.capacity = capacity;
+		this.index = index;
+	}
+
+	/**
+	 * Add a company if there is space
+	 * @param c The company to add
+	 * @return false if the queue is full
+	 */
+	public boolean offer(final Company c) {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			if (items.size() >= capacity) {
+				return false;
+			}
+			enqueue(c, handoffs);
+			return true;
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Add a company, waiting for space if necessary
+	 * @param c The company to add
+	 * @param timeout How long to wait for space
+	 * @param unit The unit of the timeout
+	 * @return false if no space became available in time
+	 * @throws InterruptedException
+	 */
+	public boolean offer(final Company c, final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lockInterruptibly();
+		try {
+			while (items.size() >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(c, handoffs);
+			return true;
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Take the head company, waiting for one if necessary
+	 * @param timeout How long to wait for an entry
+	 * @param unit The unit of the timeout
+	 * @return The head company or null if none appeared in time
+	 * @throws InterruptedException
+	 */
+	public Company poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lockInterruptibly();
+		try {
+			while (items.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Company c = dequeue();
+			notFull.signal();
+			admitPutters(handoffs);
+			return c;
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Remove up to max companies without waiting
+	 * @param target The collection to receive the companies in queue order
+	 * @param max The maximum number to remove
+	 * @return The number removed
+	 */
+	public int drainTo(final Collection<Company> target, final int max) {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			return drain(target, max, handoffs);
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Wait until at least min companies are available (or the timeout passes) and then remove up to
+	 * max companies in the same lock acquisition
+	 * @param target The collection to receive the companies in queue order
+	 * @param min The number of entries to wait for, limited to the queue capacity
+	 * @param max The maximum number to remove
+	 * @param timeout How long to wait for min entries
+	 * @param unit The unit of the timeout
+	 * @return The number removed
+	 * @throws InterruptedException
+	 */
+	public int drainTo(final Collection<Company> target, final int min, final int max, final long timeout,
+			final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lockInterruptibly();
+		try {
+			while (items.size() < Math.min(min, capacity) && nanos > 0) {
+				batchWaiters++;
+				try {
+					nanos = enough.awaitNanos(nanos);
+				} finally {
+					batchWaiters--;
+				}
+			}
+			return drain(target, max, handoffs);
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Remove all companies
+	 */
+	public void clear() {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			items.clear();
+			index.clear();
+			notFull.signalAll();
+			admitPutters(handoffs);
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Put a company that has been taken but could not be consumed back at the head of the queue. The
+	 * company already held a slot, so it is accepted even if the queue has since been filled.
+	 * @param c The company to return
+	 */
+	public void returnFirst(final Company c) {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			CompletableFuture<Company> taker = takers.poll();
+			if (taker != null) {
+				handoffs.add(() -> taker.complete(c));
+				return;
+			}
+
+			items.addFirst(c);
+			index.addedFirst(c);
+			notEmpty.signal();
+			if (batchWaiters > 0) {
+				enough.signalAll();
+			}
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Take the head company without blocking the caller
+	 * @return A future completed with the head company, immediately if one is present or otherwise
+	 *         as soon as one is offered
+	 */
+	public CompletableFuture<Company> pollAsync() {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			if (!items.isEmpty()) {
+				Company c = dequeue();
+				notFull.signal();
+				admitPutters(handoffs);
+				return CompletableFuture.completedFuture(c);
+			}
+
+			CompletableFuture<Company> taker = new CompletableFuture<>();
+			takers.add(taker);
+			return taker;
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Withdraw a waiting taker
+	 * @param taker The future returned by pollAsync
+	 * @return false if the taker has already been handed a company
+	 */
+	public boolean cancelPoll(final CompletableFuture<Company> taker) {
+		lock.lock();
+		try {
+			return takers.remove(taker);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a company without blocking the caller
+	 * @param c The company to add
+	 * @return A future completed once the company is on the queue, immediately if there is space
+	 */
+	public CompletableFuture<Void> offerAsync(final Company c) {
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			if (items.size() < capacity && putters.isEmpty()) {
+				enqueue(c, handoffs);
+				return CompletableFuture.completedFuture(null);
+			}
+
+			PendingOffer putter = new PendingOffer(c);
+			putters.add(putter);
+			return putter.future;
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Withdraw a waiting putter
+	 * @param putter The future returned by offerAsync
+	 * @return false if the company has already been admitted to the queue
+	 */
+	public boolean cancelOffer(final CompletableFuture<Void> putter) {
+		lock.lock();
+		try {
+			return putters.removeIf(p -> p.future == putter);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Change the capacity in place. Entries are neither dropped nor reordered: growing admits waiting
+	 * producers immediately, while shrinking below the current size simply holds producers back until
+	 * consumers have brought the queue under the new capacity.
+	 * @param capacity The new capacity
+	 */
+	public void setCapacity(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("A capacity must be greater than 0");
+
+		List<Runnable> handoffs = new ArrayList<>();
+		lock.lock();
+		try {
+			this.capacity = capacity;
+			notFull.signalAll();
+			enough.signalAll();
+			admitPutters(handoffs);
+		} finally {
+			lock.unlock();
+			handoffs.forEach(Runnable::run);
+		}
+	}
+
+	public int getCapacity() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return items.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return Math.max(0, capacity - items.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(final Company c, final List<Runnable> handoffs) {
+		CompletableFuture<Company> taker = takers.poll();
+		if (taker != null) {
+			handoffs.add(() -> taker.complete(c));
+			return;
+		}
+
+		items.add(c);
+		index.added(c);
+		notEmpty.signal();
+		if (batchWaiters > 0) {
+			enough.signalAll();
+		}
+	}
+
+	private Company dequeue() {
+		Company c = items.poll();
+		index.removed(c);
+		return c;
+	}
+
+	private int drain(final Collection<Company> target, final int max, final List<Runnable> handoffs) {
+		int n = 0;
+		while (n < max && !items.isEmpty()) {
+			target.add(dequeue());
+			notFull.signal();
+			n++;
+		}
+		admitPutters(handoffs);
+		return n;
+	}
+
+	private void admitPutters(final List<Runnable> handoffs) {
+		while (items.size() < capacity && !putters.isEmpty()) {
+			PendingOffer putter = putters.poll();
+			enqueue(putter.company, handoffs);
+			handoffs.add(() -> putter.future.complete(null));
+		}
+	}
+
+	/**
+	 * A company waiting for space on behalf of an asynchronous caller
+	 */
+	private static class PendingOffer {
+		private final Company company;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		PendingOffer(final Company company) {
+			this.company = company;
+		}
+	}
+}
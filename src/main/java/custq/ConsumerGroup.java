@@ -0,0 +1,34 @@
+package custq;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * JPA entity recording a consumer group and the log offset it will read from next
+ * @author regen
+ *
+ */
+@Entity
+public class ConsumerGroup {
+
+	@Id
+	private String name;
+
+	private long nextOffset;
+
+	public ConsumerGroup() {
+	}
+
+	public ConsumerGroup(final String name, final long nextOffset) {
+		this.name = name;
+		this.nextOffset = nextOffset;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getNextOffset() {
+		return nextOffset;
+	}
+}
@@ -0,0 +1,12 @@
+package custq;
+
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * Standard Spring Data repository to allow persistence of the consumer group offsets
+ * @author regen
+ *
+ */
+public interface ConsumerGroupRepository extends CrudRepository<ConsumerGroup, String> {
+
+}
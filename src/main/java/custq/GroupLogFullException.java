@@ -0,0 +1,10 @@
+package custq;
+
+/**
+ * The company was refused because a consumer group has fallen too far behind, rather than because the
+ * queue itself is full
+ * @author regen
+ *
+ */
+public class GroupLogFullException extends QueueFullException {
+}
@@ -0,0 +1,121 @@
+package custq;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Non-blocking variants of the single entry add and get operations. Requests are handled with Servlet
+ * asynchronous processing so that a client waiting for an entry or for space holds a parked future
+ * rather than a container thread. If the request times out, fails or the client goes away, the parked
+ * future is withdrawn so that no company is handed to a dead request.
+ * 
+ * Batch retrieval, browsing and consumer groups are only offered by QController.
+ * 
+ * @author regen
+ *
+ *         curl -i -X POST -d @cc.json -H "Content-Type: application/json" http://localhost:8080/async/queueManager/addCompany?timeout=xxx 
+ *         curl -i -X GET -H "Content-Type: application/json" http://localhost:8080/async/queueManager/getCompany?timeout=xxx 
+ */
+@RestController
+@RequestMapping("/async/queueManager")
+public class QAsyncController {
+
+	/**
+	 * Grace period beyond the queue timeout before the container gives up on the request
+	 */
+	private static final long ASYNC_GRACE_MILLIS = 5000L;
+
+	@Autowired
+	private QService qservice;
+
+	/**
+	 * API to add a new company to the queue without holding a request thread
+	 * @param company  The company details provided in the request body JSON 
+	 * @param timeout  A timeout value can be supplied if willing to wait for a entry in the queue
+	 * @return the id of the company, once queued
+	 */
+	@RequestMapping(value = "/addCompany", consumes = "application/json", method = RequestMethod.POST)
+	public DeferredResult<Long> add(@RequestBody Company company, @RequestParam(defaultValue = "0") String timeout) {
+		Long to = decodeTimeout(timeout);
+
+		DeferredResult<Long> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(to) + ASYNC_GRACE_MILLIS);
+		CompletableFuture<Company> future = qservice.addAsync(company, to);
+		withdrawOnAbandon(result, future);
+
+		future.whenComplete((c, t) -> {
+			if (t == null) {
+				result.setResult(c.getId());
+			} else if (cause(t) instanceof GroupLogFullException) {
+				result.setErrorResult(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+						"Consumer group log full", cause(t)));
+			} else if (cause(t) instanceof QueueFullException) {
+				result.setErrorResult(new ResponseStatusException(HttpStatus.REQUEST_TIMEOUT,
+						"Entry cannot be added to queue at this time", cause(t)));
+			} else {
+				result.setErrorResult(cause(t));
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * API to retrieve the next available company from the queue without holding a request thread
+	 * @param timeout  A timeout value can be supplied if willing to wait for a entry to appear in the queue
+	 * @return the company JSON
+	 */
+	@RequestMapping(value = "/getCompany", consumes = "application/json", method = RequestMethod.GET)
+	public DeferredResult<Company> get(@RequestParam(defaultValue = "0") String timeout) {
+		Long to = decodeTimeout(timeout);
+
+		DeferredResult<Company> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(to) + ASYNC_GRACE_MILLIS);
+		CompletableFuture<Company> future = qservice.getAsync(to);
+		withdrawOnAbandon(result, future);
+
+		future.whenComplete((c, t) -> {
+			if (t == null) {
+				result.setResult(c);
+			} else if (cause(t) instanceof QueueEmptyException) {
+				result.setErrorResult(new ResponseStatusException(HttpStatus.REQUEST_TIMEOUT,
+						"Entries cannot be received from queue at this time", cause(t)));
+			} else {
+				result.setErrorResult(cause(t));
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Cancel the queue operation if the request ends before it has completed. Cancelling a completed
+	 * operation has no effect.
+	 */
+	private static void withdrawOnAbandon(final DeferredResult<?> result, final CompletableFuture<Company> future) {
+		result.onTimeout(() -> future.cancel(false));
+		result.onError(t -> future.cancel(false));
+		result.onCompletion(() -> future.cancel(false));
+	}
+
+	private static Long decodeTimeout(final String timeout) {
+		try {
+			return Long.decode(timeout);
+		} catch (Exception e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid timeout supplied", e);
+		}
+	}
+
+	private static Throwable cause(final Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+}
@@ -11,6 +11,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 public class QConfig {
 	private Integer maxEntries;
 
+	private Integer maxGroupEntries;
+
 	public Integer getMaxEntries() {
 		return maxEntries;
 	}
@@ -18,4 +20,12 @@ public class QConfig {
 	public void setMaxEntries(Integer maxEntries) {
 		this.maxEntries = maxEntries;
 	}
+
+	public Integer getMaxGroupEntries() {
+		return maxGroupEntries;
+	}
+
+	public void setMaxGroupEntries(Integer maxGroupEntries) {
+		this.maxGroupEntries = maxGroupEntries;
+	}
 }
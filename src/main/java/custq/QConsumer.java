@@ -0,0 +1,208 @@
+package custq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains the queue in batches into a handler on a work-stealing pool. Each batch is split recursively
+ * so idle workers steal from busy ones, and it is acknowledged to the backing store in a single delete
+ * once every company in it has been handled.
+ * 
+ * Companies the handler fails on are kept by the consumer and each is retried once its own delay,
+ * doubling with every failure, has passed. Other companies keep being taken and handled meanwhile. A
+ * company still failing after the handler's maximum attempts is logged and left in the backing store.
+ * Companies awaiting a retry are returned to the queue if the consumer is stopped, so a failure never
+ * depends on the queue having space.
+ * @author regen
+ *
+ */
+public class QConsumer {
+
+	/**
+	 * How long, in seconds, the drainer waits for an entry before checking whether it has been stopped
+	 */
+	private static final long POLL_TIMEOUT = 1L;
+
+	private static final long MIN_BACKOFF_MILLIS = 100L;
+
+	private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+	private static final Logger LOG = LoggerFactory.getLogger(QConsumer.class);
+
+	private final QService qservice;
+
+	private final QHandler handler;
+
+	private final ForkJoinPool pool;
+
+	private final Thread drainer;
+
+	private volatile boolean running = false;
+
+	QConsumer(final QService qservice, final QHandler handler) {
+		if (handler.getParallelism() < 1)
+			throw new IllegalArgumentException("A parallelism must be greater than 0");
+		if (handler.getBatchSize() < 1)
+			throw new IllegalArgumentException("A batch size must be greater than 0");
+
+		this.qservice = qservice;
+		this.handler = handler;
+		this.pool = new ForkJoinPool(handler.getParallelism());
+		this.drainer = new Thread(this::drain, "QConsumer-" + handler.getClass().getSimpleName());
+		this.drainer.setDaemon(true);
+	}
+
+	void start() {
+		running = true;
+		drainer.start();
+	}
+
+	/**
+	 * Stop taking from the queue once the batch in hand has been handled
+	 */
+	public void stop() {
+		running = false;
+		drainer.interrupt();
+		try {
+			drainer.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		pool.shutdown();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void drain() {
+		List<Retry> retries = new ArrayList<>();
+
+		while (running) {
+			int size = handler.getBatchSize();
+			List<Company> batch = new ArrayList<>(size);
+			Map<Company, Retry> retried = new IdentityHashMap<>();
+
+			long now = System.nanoTime();
+			for (Iterator<Retry> i = retries.iterator(); i.hasNext() && batch.size() < size;) {
+				Retry r = i.next();
+				if (r.due - now <= 0) {
+					batch.add(r.company);
+					retried.put(r.company, r);
+					i.remove();
+				}
+			}
+
+			// Fill the batch from the queue, waiting no longer than the next retry falls due
+			if (batch.size() < size) {
+				long wait = batch.isEmpty() ? untilDue(retries, now) : 0L;
+				batch.addAll(qservice.take(size - batch.size(), 1, wait, TimeUnit.NANOSECONDS));
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			Set<Company> failed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+			pool.invoke(new HandleTask(batch, 0, batch.size(), failed));
+
+			List<Company> handled = new ArrayList<>(batch.size());
+			for (Company c : batch) {
+				if (!failed.contains(c)) {
+					handled.add(c);
+					continue;
+				}
+
+				Retry r = retried.getOrDefault(c, new Retry(c));
+				if (++r.attempts >= handler.getMaxAttempts()) {
+					LOG.error("Giving up on {} after {} attempts, it remains in the backing store", c.getName(),
+							r.attempts);
+				} else {
+					r.due = System.nanoTime() + TimeUnit.MILLISECONDS
+							.toNanos(Math.min(MIN_BACKOFF_MILLIS << Math.min(r.attempts - 1, 16), MAX_BACKOFF_MILLIS));
+					retries.add(r);
+				}
+			}
+
+			try {
+				qservice.acknowledge(handled);
+			} catch (Exception e) {
+				LOG.error("Handled companies could not be acknowledged", e);
+			}
+		}
+
+		// Hand back anything awaiting a retry, in order, so that other consumers can take it
+		for (int i = retries.size() - 1; i >= 0; i--) {
+			qservice.requeue(retries.get(i).company);
+		}
+	}
+
+	/**
+	 * @return How long, in nanoseconds, to wait for the queue before the earliest retry falls due
+	 */
+	private static long untilDue(final List<Retry> retries, final long now) {
+		long wait = TimeUnit.SECONDS.toNanos(POLL_TIMEOUT);
+		for (Retry r : retries) {
+			wait = Math.min(wait, Math.max(0L, r.due - now));
+		}
+		return wait;
+	}
+
+	/**
+	 * A company the handler has failed on, with the number of attempts made and when to try it next
+	 */
+	private static class Retry {
+		private final Company company;
+		private int attempts;
+		private long due;
+
+		Retry(final Company company) {
+			this.company = company;
+		}
+	}
+
+	/**
+	 * Handles a slice of a batch, splitting it in two until a single company remains
+	 */
+	private class HandleTask extends RecursiveAction {
+
+		private final List<Company> batch;
+		private final int from;
+		private final int to;
+		private final Set<Company> failed;
+
+		HandleTask(final List<Company> batch, final int from, final int to, final Set<Company> failed) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new HandleTask(batch, from, mid, failed), new HandleTask(batch, mid, to, failed));
+				return;
+			}
+
+			Company c = batch.get(from);
+			try {
+				handler.handle(c);
+			} catch (Exception e) {
+				LOG.warn("Handler failed for {}", c.getName(), e);
+				failed.add(c);
+			}
+		}
+	}
+}
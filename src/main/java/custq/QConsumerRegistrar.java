@@ -0,0 +1,37 @@
+package custq;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Starts an in-process consumer for every QHandler bean once the application is ready, i.e. after the
+ * queue has been re-synchronised with its backing store
+ * @author regen
+ *
+ */
+@Component
+public class QConsumerRegistrar {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QConsumerRegistrar.class);
+
+	@Autowired
+	private QService qservice;
+
+	@Autowired(required = false)
+	private List<QHandler> handlers = Collections.emptyList();
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void startConsumers() {
+		for (QHandler h : handlers) {
+			qservice.consume(h);
+			LOG.info("Started consumer {} with parallelism {}", h.getClass().getSimpleName(), h.getParallelism());
+		}
+	}
+}
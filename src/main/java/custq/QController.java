@@ -1,11 +1,15 @@
 package custq;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -13,6 +17,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * 
@@ -20,7 +25,20 @@ import org.springframework.web.server.ResponseStatusException;
  *
  *         curl -i -X POST -d @cc.json -H "Content-Type: application/json" http://localhost:8080/queueManager/addCompany?timeout=xxx 
  *         curl -i -X GET -H "Content-Type: application/json" http://localhost:8080/queueManager/getCompany?timeout=xxx 
- *         curl -i -X GET -H "Content-Type: application/json" http://localhost:8080/queueManager/getCompanies/3 
+ *         curl -i -X GET -H "Content-Type: application/json" http://localhost:8080/queueManager/getCompanies/3?minSize=xxx&timeout=xxx 
+ *         curl -i -X GET http://localhost:8080/queueManager/peekCompanies/3 
+ *         curl -i -X GET http://localhost:8080/queueManager/findByNumber/07543334532 
+ *         curl -i -X GET http://localhost:8080/queueManager/findByName/GavWeb?size=xxx 
+ *         curl -i -X GET http://localhost:8080/queueManager/depth 
+ *         curl -i -X PUT http://localhost:8080/queueManager/groups/{group} 
+ *         curl -i -X GET http://localhost:8080/queueManager/groups/{group}/getCompanies/3?timeout=xxx 
+ *         curl -i -X GET http://localhost:8080/queueManager/groups 
+ *         curl -i -X DELETE http://localhost:8080/queueManager/groups/{group} 
+ *         curl -i -X GET http://localhost:8080/queueManager/capacity 
+ *         curl -i -X PUT http://localhost:8080/queueManager/capacity/xxx 
+ *         curl -N -X GET http://localhost:8080/queueManager/subscribe?prefetch=xxx 
+ *         curl -i -X POST http://localhost:8080/queueManager/subscriptions/{id}/credit?n=xxx 
+ *         curl -i -X DELETE http://localhost:8080/queueManager/subscriptions/{id} 
  *		   cc.json--> {"name":"GavWebCo2","description":"The final description","number":"07543334532"}
  *         rm ~/temp/data/q.mv.db
  */
@@ -52,6 +70,8 @@ public class QController {
 
 		try {
 			qservice.add(company, to);
+		} catch (GroupLogFullException glfe) {
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Consumer group log full", glfe);
 		} catch (QueueFullException qfe) {
 			throw new ResponseStatusException(HttpStatus.REQUEST_TIMEOUT, "Entry cannot be added to queue at this time",
 					qfe);
@@ -88,14 +108,255 @@ public class QController {
 	/**
 	 * API to retrieve multiple companies from the queue
 	 * @param size the maximum number of companies to retrieve
+	 * @param minSize the number of companies to wait for before the group is taken
+	 * @param timeout A timeout value can be supplied if willing to wait for minSize entries to appear in the queue
 	 * @return the JSON holding the companies retrieved
 	 */
 	@RequestMapping(value = "/getCompanies/{size}", consumes = "application/json", method = RequestMethod.GET)
-	public List<Company> getMany(@PathVariable int size) {
-		List<Company> cl = qservice.getGroup(size);
+	public List<Company> getMany(@PathVariable int size, @RequestParam(defaultValue = "1") String minSize,
+			@RequestParam(defaultValue = "0") String timeout) {
+		Integer min = null;
+		Long to = null;
+		try {
+			min = Integer.decode(minSize);
+			to = Long.decode(timeout);
+		} catch (Exception e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid minSize or timeout supplied", e);
+		}
+
+		List<Company> cl = null;
+		try {
+			cl = qservice.getGroup(size, min, to);
+		} catch (IllegalArgumentException iae) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, iae.getMessage(), iae);
+		}
 		return cl;
 	}
 
+	/**
+	 * API to view the companies at the head of the queue without removing them
+	 * @param size the maximum number of companies to return
+	 * @return the JSON holding the companies in queue order
+	 */
+	@RequestMapping(value = "/peekCompanies/{size}", method = RequestMethod.GET)
+	public List<Company> peekMany(@PathVariable int size) {
+		if (size < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid size supplied");
+		}
+
+		return qservice.getIndex().head(size);
+	}
+
+	/**
+	 * API to find queued companies by company number without removing them
+	 * @param number the company number
+	 * @return the JSON holding the matching companies in queue order
+	 */
+	@RequestMapping(value = "/findByNumber/{number}", method = RequestMethod.GET)
+	public List<Company> findByNumber(@PathVariable String number) {
+		return qservice.getIndex().findByNumber(number);
+	}
+
+	/**
+	 * API to find queued companies by the start of their name without removing them
+	 * @param prefix the start of the company name
+	 * @param size the maximum number of companies to return
+	 * @return the JSON holding the matching companies
+	 */
+	@RequestMapping(value = "/findByName/{prefix}", method = RequestMethod.GET)
+	public List<Company> findByName(@PathVariable String prefix, @RequestParam(defaultValue = "10") int size) {
+		if (size < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid size supplied");
+		}
+
+		return qservice.getIndex().findByNamePrefix(prefix, size);
+	}
+
+	/**
+	 * API to report the number of companies currently queued
+	 * @return the queue depth
+	 */
+	@RequestMapping(value = "/depth", method = RequestMethod.GET)
+	public int depth() {
+		return qservice.getIndex().depth();
+	}
+
+	/**
+	 * API to report the maximum number of entries the queue currently holds
+	 * @return the queue capacity
+	 */
+	@RequestMapping(value = "/capacity", method = RequestMethod.GET)
+	public int capacity() {
+		return qservice.getCapacity();
+	}
+
+	/**
+	 * Admin API to grow or shrink the live queue. No entries are lost or reordered; when shrinking below
+	 * the current depth producers wait until consumers bring the queue under the new capacity.
+	 * @param size the new capacity
+	 * @return the queue capacity
+	 */
+	@RequestMapping(value = "/capacity/{size}", method = RequestMethod.PUT)
+	public int resize(@PathVariable int size) {
+		if (size < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid capacity supplied");
+		}
+
+		qservice.resize(size);
+		return qservice.getCapacity();
+	}
+
+	/**
+	 * API to register a consumer group. A group receives every company still retained for other groups and
+	 * every company added from then on, independently of the queue and of any other group.
+	 * @param group the group name
+	 */
+	@RequestMapping(value = "/groups/{group}", method = RequestMethod.PUT)
+	public void addGroup(@PathVariable String group) {
+		if (!qservice.registerGroup(group)) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, "Group already exists");
+		}
+	}
+
+	/**
+	 * API to remove a consumer group, releasing any entries it has not read
+	 * @param group the group name
+	 */
+	@RequestMapping(value = "/groups/{group}", method = RequestMethod.DELETE)
+	public void removeGroup(@PathVariable String group) {
+		if (!qservice.removeGroup(group)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Group not found");
+		}
+	}
+
+	/**
+	 * API to report the number of entries each consumer group has still to read
+	 * @return the JSON holding the lag per group
+	 */
+	@RequestMapping(value = "/groups", method = RequestMethod.GET)
+	public Map<String, Long> groupLag() {
+		return qservice.groupLag();
+	}
+
+	/**
+	 * API to read the next companies for a consumer group, advancing only that group's offset
+	 * @param group the group name
+	 * @param size the maximum number of companies to read
+	 * @param timeout A timeout value can be supplied if willing to wait for an entry to be added
+	 * @return the JSON holding the companies read
+	 */
+	@RequestMapping(value = "/groups/{group}/getCompanies/{size}", method = RequestMethod.GET)
+	public List<Company> readGroup(@PathVariable String group, @PathVariable int size,
+			@RequestParam(defaultValue = "0") String timeout) {
+		Long to = null;
+		try {
+			to = Long.decode(timeout);
+		} catch (Exception e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid timeout supplied", e);
+		}
+
+		if (size < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid size supplied");
+		}
+
+		try {
+			return qservice.readGroup(group, size, to);
+		} catch (UnknownGroupException uge) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Group not found", uge);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Group read interrupted", ie);
+		}
+	}
+
+	/**
+	 * API to open a Server-Sent Events stream onto which companies are pushed as they are enqueued.
+	 * The first event ("subscription") carries the subscription id used to extend the credit window.
+	 * @param prefetch The number of companies that may be pushed before further credit is granted
+	 * @return the event stream
+	 */
+	@RequestMapping(value = "/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE, method = RequestMethod.GET)
+	public SseEmitter subscribe(@RequestParam(defaultValue = "10") String prefetch) {
+		Integer pf = null;
+		try {
+			pf = Integer.decode(prefetch);
+		} catch (Exception e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid prefetch supplied", e);
+		}
+
+		if (pf < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid prefetch supplied");
+		}
+
+		final SseEmitter emitter = new SseEmitter(0L);
+		final QSubscription s;
+		try {
+			s = qservice.subscribe(new QSubscriber() {
+				@Override
+				public void opened(String id) {
+					try {
+						emitter.send(SseEmitter.event().name("subscription").data(id));
+					} catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				}
+
+				@Override
+				public void deliver(Company c) throws Exception {
+					emitter.send(SseEmitter.event().name("company").data(c, MediaType.APPLICATION_JSON));
+				}
+
+				@Override
+				public void closed() {
+					emitter.complete();
+				}
+			}, pf);
+		} catch (UncheckedIOException uioe) {
+			throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Subscription cannot be opened",
+					uioe.getCause());
+		}
+
+		emitter.onCompletion(() -> qservice.unsubscribe(s.getId()));
+		emitter.onTimeout(() -> qservice.unsubscribe(s.getId()));
+		emitter.onError(t -> qservice.unsubscribe(s.getId()));
+
+		return emitter;
+	}
+
+	/**
+	 * API to extend the credit window of a subscription
+	 * @param id The subscription id
+	 * @param n The number of further companies the subscriber is willing to receive
+	 */
+	@RequestMapping(value = "/subscriptions/{id}/credit", method = RequestMethod.POST)
+	public void grant(@PathVariable String id, @RequestParam(defaultValue = "1") String n) {
+		Integer credit = null;
+		try {
+			credit = Integer.decode(n);
+		} catch (Exception e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid credit supplied", e);
+		}
+
+		if (credit < 1) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid credit supplied");
+		}
+
+		if (!qservice.grant(id, credit)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Subscription not found");
+		}
+	}
+
+	/**
+	 * API to close a subscription
+	 * @param id The subscription id
+	 */
+	@RequestMapping(value = "/subscriptions/{id}", method = RequestMethod.DELETE)
+	public void unsubscribe(@PathVariable String id) {
+		if (!qservice.unsubscribe(id)) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Subscription not found");
+		}
+	}
+
 	/**
 	 * Method to re-instate the queue on application start-up
 	 * @throws Exception
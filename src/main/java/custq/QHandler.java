@@ -0,0 +1,41 @@
+package custq;
+
+/**
+ * In-process consumer of the queue. Any bean implementing this interface is started against the queue
+ * once the application is ready, receiving companies directly rather than through the REST layer.
+ * @author regen
+ *
+ */
+@FunctionalInterface
+public interface QHandler {
+
+	/**
+	 * Process a company taken from the queue
+	 * @param c The company
+	 * @throws Exception if the company could not be processed, in which case the consumer retries it
+	 *         after a delay, up to getMaxAttempts times
+	 */
+	void handle(Company c) throws Exception;
+
+	/**
+	 * @return The number of worker threads processing companies for this handler
+	 */
+	default int getParallelism() {
+		return 1;
+	}
+
+	/**
+	 * @return The maximum number of companies taken from the queue at a time
+	 */
+	default int getBatchSize() {
+		return 10;
+	}
+
+	/**
+	 * @return The number of times a company is handled before the consumer gives up on it, leaving it in
+	 *         the backing store to be recovered by the next synchronise
+	 */
+	default int getMaxAttempts() {
+		return 5;
+	}
+}
@@ -0,0 +1,154 @@
+package custq;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory secondary indexes over the queued companies, maintained by the queue under its lock as
+ * entries are enqueued and dequeued. The browsable structures are lock-free so that browsing never
+ * contends with the queue itself or touches the backing store, and keys are built without formatting
+ * so that the work done under the queue's lock stays small.
+ * @author regen
+ *
+ */
+public class QIndex {
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Entries returned to the head of the queue are numbered downwards so they sort before the rest
+	private final AtomicLong headSequence = new AtomicLong();
+
+	private final AtomicInteger depth = new AtomicInteger();
+
+	// Only touched by the queue under its lock, so needs no synchronisation of its own
+	private final Map<Company, Long> sequences = new IdentityHashMap<>();
+
+	private final ConcurrentSkipListMap<Long, Company> bySequence = new ConcurrentSkipListMap<>();
+
+	private final ConcurrentSkipListMap<Key, Company> byNumber = new ConcurrentSkipListMap<>();
+
+	private final ConcurrentSkipListMap<Key, Company> byName = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Index a company placed at the tail of the queue
+	 * @param c The company
+	 */
+	void added(final Company c) {
+		index(c, sequence.incrementAndGet());
+	}
+
+	/**
+	 * Index a company returned to the head of the queue
+	 * @param c The company
+	 */
+	void addedFirst(final Company c) {
+		index(c, headSequence.getAndDecrement());
+	}
+
+	private void index(final Company c, final long seq) {
+		if (sequences.putIfAbsent(c, seq) != null) {
+			return;
+		}
+
+		bySequence.put(seq, c);
+		if (c.getNumber() != null) {
+			byNumber.put(new Key(c.getNumber(), seq), c);
+		}
+		if (c.getName() != null) {
+			byName.put(new Key(c.getName(), seq), c);
+		}
+		depth.incrementAndGet();
+	}
+
+	/**
+	 * Remove a company taken from the queue
+	 * @param c The company
+	 */
+	void removed(final Company c) {
+		if (c == null) {
+			return;
+		}
+
+		Long seq = sequences.remove(c);
+		if (seq == null) {
+			return;
+		}
+
+		bySequence.remove(seq);
+		if (c.getNumber() != null) {
+			byNumber.remove(new Key(c.getNumber(), seq));
+		}
+		if (c.getName() != null) {
+			byName.remove(new Key(c.getName(), seq));
+		}
+		depth.decrementAndGet();
+	}
+
+	void clear() {
+		sequences.clear();
+		bySequence.clear();
+		byNumber.clear();
+		byName.clear();
+		depth.set(0);
+	}
+
+	/**
+	 * @param n The maximum number of entries
+	 * @return The oldest n entries in queue order
+	 */
+	public List<Company> head(final int n) {
+		return bySequence.values().stream().limit(n).collect(Collectors.toList());
+	}
+
+	/**
+	 * @param number The company number
+	 * @return The queued entries with the given number in queue order
+	 */
+	public List<Company> findByNumber(final String number) {
+		return new ArrayList<>(byNumber
+				.subMap(new Key(number, Long.MIN_VALUE), true, new Key(number, Long.MAX_VALUE), true).values());
+	}
+
+	/**
+	 * @param prefix The start of the company name
+	 * @param n The maximum number of entries
+	 * @return The queued entries with a name beginning with the prefix, ordered by name then queue order
+	 */
+	public List<Company> findByNamePrefix(final String prefix, final int n) {
+		return byName
+				.subMap(new Key(prefix, Long.MIN_VALUE), true, new Key(prefix + Character.MAX_VALUE, Long.MIN_VALUE), false)
+				.values().stream().limit(n).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return The number of entries currently queued
+	 */
+	public int depth() {
+		return depth.get();
+	}
+
+	/**
+	 * Index key ordering entries by value and then by queue position
+	 */
+	private static final class Key implements Comparable<Key> {
+		private final String value;
+		private final long seq;
+
+		Key(final String value, final long seq) {
+			this.value = value;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(final Key o) {
+			int c = value.compareTo(o.value);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package custq;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of companies read by consumer groups. Each entry is held once, whatever the
+ * number of groups, and each group tracks its own read offset. Entries are reclaimed once every
+ * group has read past them, so a group that stops reading retains entries until it is removed.
+ *
+ * The log is bounded: once it holds its capacity of unread entries, producers wait for the slowest
+ * group to read on. An entry is reserved before its company is queued and only becomes readable once
+ * committed; an aborted reservation is skipped by every group.
+ * @author regen
+ *
+ */
+public class QLog {
+
+	private static final int INITIAL_SIZE = 16;
+
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition appended = lock.newCondition();
+
+	private final Condition space = lock.newCondition();
+
+	private final Map<String, Long> offsets = new LinkedHashMap<>();
+
+	private final Consumer<Company> reclaimed;
+
+	private int capacity = DEFAULT_CAPACITY;
+
+	// Ring buffers indexed by offset; always the same power of two in length
+	private Company[] entries = new Company[INITIAL_SIZE];
+
+	private boolean[] committed = new boolean[INITIAL_SIZE];
+
+	private long head = 0;
+
+	private long tail = 0;
+
+	public QLog() {
+		this(c -> {});
+	}
+
+	/**
+	 * @param reclaimed Called, outside the log's lock, for each company released by every group
+	 */
+	public QLog(final Consumer<Company> reclaimed) {
+		this.reclaimed = reclaimed;
+	}
+
+	/**
+	 * @param capacity The maximum number of entries retained before producers are held back
+	 */
+	public void setCapacity(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("A capacity must be greater than 0");
+
+		lock.lock();
+		try {
+			this.capacity = capacity;
+			space.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The maximum number of entries retained before producers are held back
+	 */
+	public int getCapacity() {
+		lock.lock();
+		try {
+			return capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if any group is registered, so that appends are worth retaining
+	 */
+	public boolean hasGroups() {
+		lock.lock();
+		try {
+			return !offsets.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reserve the next entry for a company, waiting for space if the log is full. The entry is held
+	 * back from every group until committed. Nothing is reserved if there are no groups.
+	 * @param c The company, which is given the offset of its entry
+	 * @param timeout How long to wait for space
+	 * @param unit The unit of the timeout
+	 * @return false if the log remained full for the whole timeout
+	 * @throws InterruptedException
+	 */
+	boolean reserve(final Company c, final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!offsets.isEmpty() && tail - head >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = space.awaitNanos(nanos);
+			}
+			if (offsets.isEmpty()) {
+				return true;
+			}
+
+			if (tail - head == entries.length) {
+				grow();
+			}
+			c.setLogOffset(tail);
+			entries[slot(tail)] = c;
+			committed[slot(tail++)] = false;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Make a reserved entry readable by every group
+	 * @param c The company reserved
+	 */
+	void commit(final Company c) {
+		complete(c, true);
+	}
+
+	/**
+	 * Withdraw a reserved entry; groups skip over it
+	 * @param c The company reserved
+	 */
+	void abort(final Company c) {
+		complete(c, false);
+	}
+
+	/**
+	 * @param c A company
+	 * @return true if the log still holds the company for a group that has not read past it
+	 */
+	boolean retains(final Company c) {
+		lock.lock();
+		try {
+			return holds(c);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Register a consumer group, starting from the earliest entry retained
+	 * @param group The group name
+	 * @return false if the group already exists
+	 */
+	public boolean register(final String group) {
+		lock.lock();
+		try {
+			return offsets.putIfAbsent(group, head) == null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a consumer group, releasing any entries only it was holding
+	 * @param group The group name
+	 * @return false if the group is not known
+	 */
+	public boolean remove(final String group) {
+		List<Company> released;
+		lock.lock();
+		try {
+			if (offsets.remove(group) == null) {
+				return false;
+			}
+			released = reclaim();
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		released.forEach(reclaimed);
+		return true;
+	}
+
+	/**
+	 * Read the next entries for a group and advance its offset past them. Reading stops at an entry
+	 * that is reserved but not yet committed, so each group sees the entries in log order.
+	 * @param group The group name
+	 * @param max The maximum number of entries to read
+	 * @param timeout How long to wait if the group has nothing left to read
+	 * @param unit The unit of the timeout
+	 * @return The entries read, in append order
+	 * @throws UnknownGroupException
+	 * @throws InterruptedException
+	 */
+	public List<Company> read(final String group, final int max, final long timeout, final TimeUnit unit)
+			throws UnknownGroupException, InterruptedException {
+		List<Company> companies = new ArrayList<>();
+		List<Company> released;
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			Long offset = offsets.get(group);
+			while (offset != null && !readable(offset) && nanos > 0) {
+				nanos = appended.awaitNanos(nanos);
+				offset = offsets.get(group);
+			}
+			if (offset == null) {
+				throw new UnknownGroupException();
+			}
+
+			long o = offset;
+			while (o < tail && committed[slot(o)] && companies.size() < max) {
+				Company c = entries[slot(o++)];
+				if (c != null) {
+					companies.add(c);
+				}
+			}
+
+			offsets.put(group, o);
+			released = reclaim();
+		} finally {
+			lock.unlock();
+		}
+
+		released.forEach(reclaimed);
+		return companies;
+	}
+
+	/**
+	 * @param group The group name
+	 * @return The offset of the next entry the group will read, or null if the group is not known
+	 */
+	public Long offset(final String group) {
+		lock.lock();
+		try {
+			return offsets.get(group);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of entries each group has still to read
+	 */
+	public Map<String, Long> lag() {
+		lock.lock();
+		try {
+			Map<String, Long> lag = new LinkedHashMap<>();
+			offsets.forEach((g, o) -> lag.put(g, tail - o));
+			return lag;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of entries currently retained
+	 */
+	public long retained() {
+		lock.lock();
+		try {
+			return tail - head;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replace the contents of the log with state recovered from the backing store. Offsets without a
+	 * company are treated as aborted entries.
+	 * @param groups The offset of each group
+	 * @param companies The retained companies, each holding its offset
+	 */
+	void restore(final Map<String, Long> groups, final List<Company> companies) {
+		lock.lock();
+		try {
+			offsets.clear();
+			offsets.putAll(groups);
+
+			head = offsets.values().stream().mapToLong(Long::longValue).min().orElse(0L);
+			tail = offsets.values().stream().mapToLong(Long::longValue).max().orElse(0L);
+			for (Company c : companies) {
+				tail = Math.max(tail, c.getLogOffset() + 1);
+			}
+
+			int size = INITIAL_SIZE;
+			while (size < tail - head) {
+				size *= 2;
+			}
+			entries = new Company[size];
+			committed = new boolean[size];
+			for (long o = head; o < tail; o++) {
+				committed[slot(o)] = true;
+			}
+			for (Company c : companies) {
+				if (c.getLogOffset() >= head) {
+					entries[slot(c.getLogOffset())] = c;
+				}
+			}
+
+			appended.signalAll();
+			space.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void complete(final Company c, final boolean commit) {
+		lock.lock();
+		try {
+			if (!holds(c)) {
+				return;
+			}
+			int slot = slot(c.getLogOffset());
+			if (!commit) {
+				entries[slot] = null;
+			}
+			committed[slot] = true;
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean holds(final Company c) {
+		Long offset = c.getLogOffset();
+		return offset != null && offset >= head && offset < tail && entries[slot(offset)] == c;
+	}
+
+	private boolean readable(final long offset) {
+		return offset < tail && committed[slot(offset)];
+	}
+
+	/**
+	 * Release the entries every group has read past
+	 * @return The companies released
+	 */
+	private List<Company> reclaim() {
+		List<Company> released = new ArrayList<>();
+		long min = offsets.values().stream().mapToLong(Long::longValue).min().orElse(tail);
+		if (head < min) {
+			space.signalAll();
+		}
+		while (head < min) {
+			int slot = slot(head++);
+			if (entries[slot] != null) {
+				released.add(entries[slot]);
+				entries[slot] = null;
+			}
+		}
+		return released;
+	}
+
+	private void grow() {
+		Company[] larger = new Company[entries.length * 2];
+		boolean[] largerCommitted = new boolean[larger.length];
+		for (long o = head; o < tail; o++) {
+			larger[(int) (o & (larger.length - 1))] = entries[slot(o)];
+			largerCommitted[(int) (o & (larger.length - 1))] = committed[slot(o)];
+		}
+		entries = larger;
+		committed = largerCommitted;
+	}
+
+	private int slot(final long offset) {
+		return (int) (offset & (entries.length - 1));
+	}
+}
@@ -1,11 +1,29 @@
 package custq;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -18,10 +36,76 @@ import org.springframework.stereotype.Component;
 @Component
 public class QService {
 
+	private static final Logger LOG = LoggerFactory.getLogger(QService.class);
+
 	@Autowired
 	private CompanyRepository companyRepository;
-	
-	private BlockingQueue<Company>  companyQueue = new ArrayBlockingQueue<>(5);
+
+	@Autowired
+	private ConsumerGroupRepository groupRepository;
+
+	@Autowired(required = false)
+	private QConfig qconfig;
+
+	private static final int DEFAULT_CAPACITY = 5;
+
+	private final QIndex index = new QIndex();
+
+	private CompanyQueue companyQueue = new CompanyQueue(DEFAULT_CAPACITY, index);
+
+	private final QLog log = new QLog(this::reclaimed);
+
+	// Orders the persistence of group offsets with their changes in the log
+	private final Object groups = new Object();
+
+	private final List<QSubscription> subscriptions = new ArrayList<>();
+
+	private int nextSubscriber = 0;
+
+	private Thread dispatcher;
+
+	private final List<QConsumer> consumers = new ArrayList<>();
+
+	private static final int PERSISTENCE_THREADS = 4;
+
+	private final ExecutorService persistence = Executors.newFixedThreadPool(PERSISTENCE_THREADS,
+			daemonThreads("QService-persistence"));
+
+	// Pushes run off the dispatcher so that a slow subscriber holds up only itself
+	private final ExecutorService pushers = Executors.newCachedThreadPool(daemonThreads("QService-push"));
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(daemonThreads("QService-timer"));
+
+	/**
+	 * Size the queue and the consumer group log from the externalised configuration
+	 */
+	@PostConstruct
+	public void configure() {
+		if (qconfig != null && qconfig.getMaxEntries() != null) {
+			companyQueue.setCapacity(qconfig.getMaxEntries());
+		}
+		if (qconfig != null && qconfig.getMaxGroupEntries() != null) {
+			log.setCapacity(qconfig.getMaxGroupEntries());
+		}
+	}
+
+	/**
+	 * Grow or shrink the live queue without losing or reordering entries. Shrinking below the current
+	 * depth holds producers back until consumers have brought the queue under the new capacity.
+	 * @param capacity The new maximum number of entries
+	 */
+	public void resize(final int capacity) {
+		companyQueue.setCapacity(capacity);
+		LOG.info("Queue resized to {}", capacity);
+	}
+
+	/**
+	 * @return The maximum number of entries the queue currently holds
+	 */
+	public int getCapacity() {
+		return companyQueue.getCapacity();
+	}
 
 	/**
 	 * Remove all messages from the queue
@@ -30,6 +114,20 @@ public class QService {
 		companyQueue.clear();
 	}
 
+	/**
+	 * @return The secondary indexes over the entries currently queued
+	 */
+	public QIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return The shared log read by consumer groups
+	 */
+	public QLog getLog() {
+		return log;
+	}
+
 	public void add(final Company c) throws QueueFullException {
 		this.add(c, null);
 	}
@@ -37,21 +135,46 @@ public class QService {
 	/**
 	 * 
 	 * @param c The company to add
-	 * @param timeout How long to wait if the queue is full
+	 * @param timeout How long to wait if the queue or the consumer group log is full
 	 * @throws QueueFullException
+	 * @throws GroupLogFullException if a consumer group is too far behind for the company to be logged
 	 */
 	public void add(final Company c, final Long timeout) throws QueueFullException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout == null ? 0 : timeout);
+
+		// Hold a place in the group log first, so that groups which fall behind hold producers back
+		try {
+			if (!log.reserve(c, timeout == null ? 0 : timeout, TimeUnit.SECONDS)) {
+				throw new GroupLogFullException();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new QueueFullException();
+		}
+
+		boolean saved = false;
 		boolean added = false;
 		try {
-			added = companyQueue.offer(c, timeout == null ? 0 : timeout, TimeUnit.SECONDS);
+			// Persist before the company becomes visible so a consumer can never delete it first
 			companyRepository.save(c);
+			saved = true;
+			added = companyQueue.offer(c, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
 		} catch (Exception e) {
 			added = false;
 		}
 
 		if (!added) {
+			log.abort(c);
+			if (saved) {
+				try {
+					companyRepository.delete(c);
+				} catch (Exception e) {
+				}
+			}
 			throw new QueueFullException();
 		}
+
+		log.commit(c);
 	}
 
 	public Company get() throws QueueEmptyException {
@@ -70,7 +193,7 @@ public class QService {
 
 		try {
 			got = companyQueue.poll(timeout == null ? 0 : timeout, TimeUnit.SECONDS);
-			companyRepository.delete(got);
+			release(got);
 		} catch (Exception e) {
 		}
 
@@ -87,29 +210,582 @@ public class QService {
 	 * @return A list of the companies identified
 	 */
 	public List<Company> getGroup(final int sz)  {
+		return this.getGroup(sz, 1, null);
+	}
+
+	/**
+	 * 
+	 * @param sz the maximum number of companies to retrieve in the group
+	 * @param minSize the number of companies to wait for before the group is taken
+	 * @param timeout How long to wait for minSize companies to be available
+	 * @return A list of the companies identified, which may be smaller than minSize if the timeout passed
+	 */
+	public List<Company> getGroup(final int sz, final int minSize, final Long timeout)  {
+		List<Company> companies = take(sz, minSize, timeout);
+		acknowledge(companies);
+		return companies;
+	}
+
+	/**
+	 * Take a group from the queue, leaving the companies in the backing store until acknowledged
+	 * @param sz the maximum number of companies to take
+	 * @param minSize the number of companies to wait for before the group is taken
+	 * @param timeout How long to wait for minSize companies to be available
+	 * @return A list of the companies taken
+	 */
+	List<Company> take(final int sz, final int minSize, final Long timeout) {
+		return take(sz, minSize, timeout == null ? 0 : timeout, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Take a group from the queue, leaving the companies in the backing store until acknowledged
+	 * @param sz the maximum number of companies to take
+	 * @param minSize the number of companies to wait for before the group is taken
+	 * @param timeout How long to wait for minSize companies to be available
+	 * @param unit The unit of the timeout
+	 * @return A list of the companies taken
+	 */
+	List<Company> take(final int sz, final int minSize, final long timeout, final TimeUnit unit) {
 		if (sz < 1)
 			throw new IllegalArgumentException("A group size must be greater than 1");
+		if (minSize < 1 || minSize > sz)
+			throw new IllegalArgumentException("A minimum group size must be between 1 and the group size");
 
 		List<Company> companies = new ArrayList<>(sz);
 
-		if (companyQueue.drainTo(companies, sz) > 0) {
-			companyRepository.deleteAll(companies);
+		try {
+			companyQueue.drainTo(companies, minSize, sz, timeout, unit);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		return companies;
+	}
+
+	/**
+	 * Remove taken companies from the backing store in a single delete. Companies still retained for
+	 * a consumer group are kept, marked as consumed, until every group has read past them.
+	 * @param companies The companies that have been consumed
+	 */
+	void acknowledge(final List<Company> companies) {
+		List<Company> released = new ArrayList<>(companies.size());
+		for (Company c : companies) {
+			if (!retain(c)) {
+				released.add(c);
+			}
+		}
+
+		if (released.size() > 0) {
+			companyRepository.deleteAll(released);
+		}
+	}
+
+	/**
+	 * Remove a taken company from the backing store, unless it is still retained for a consumer group
+	 * @param c The company that has been consumed
+	 */
+	private void release(final Company c) {
+		if (!retain(c)) {
+			companyRepository.delete(c);
+		}
+	}
+
+	/**
+	 * Keep a consumed company in the backing store while the log holds it for a group. The decision and
+	 * the update are made under the company's monitor, as is the delete once the log reclaims it.
+	 * @return false if no group needs the company
+	 */
+	private boolean retain(final Company c) {
+		if (c.getLogOffset() == null) {
+			return false;
+		}
+
+		synchronized (c) {
+			if (!log.retains(c)) {
+				return false;
+			}
+			c.setConsumed(true);
+			companyRepository.save(c);
+			return true;
+		}
+	}
+
+	/**
+	 * Every group has read past a company: remove it from the backing store if the queue has
+	 * already consumed it
+	 */
+	private void reclaimed(final Company c) {
+		persistence.execute(() -> {
+			synchronized (c) {
+				if (c.isConsumed()) {
+					try {
+						companyRepository.delete(c);
+					} catch (Exception e) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Register a consumer group, recording its offset in the backing store
+	 * @param group The group name
+	 * @return false if the group already exists
+	 */
+	public boolean registerGroup(final String group) {
+		synchronized (groups) {
+			if (!log.register(group)) {
+				return false;
+			}
+			groupRepository.save(new ConsumerGroup(group, log.offset(group)));
+			return true;
 		}
-		
+	}
+
+	/**
+	 * Remove a consumer group, releasing any entries only it was holding
+	 * @param group The group name
+	 * @return false if the group is not known
+	 */
+	public boolean removeGroup(final String group) {
+		synchronized (groups) {
+			if (!log.remove(group)) {
+				return false;
+			}
+			groupRepository.deleteById(group);
+			return true;
+		}
+	}
+
+	/**
+	 * Read the next entries for a group, recording its new offset in the backing store
+	 * @param group The group name
+	 * @param max The maximum number of entries to read
+	 * @param timeout How long to wait if the group has nothing left to read
+	 * @return The entries read, in append order
+	 * @throws UnknownGroupException
+	 * @throws InterruptedException
+	 */
+	public List<Company> readGroup(final String group, final int max, final Long timeout)
+			throws UnknownGroupException, InterruptedException {
+		List<Company> companies = log.read(group, max, timeout == null ? 0 : timeout, TimeUnit.SECONDS);
+
+		synchronized (groups) {
+			Long offset = log.offset(group);
+			if (offset != null) {
+				groupRepository.save(new ConsumerGroup(group, offset));
+			}
+		}
+
 		return companies;
 	}
+
+	/**
+	 * @return The number of entries each consumer group has still to read
+	 */
+	public Map<String, Long> groupLag() {
+		return log.lag();
+	}
+
+	/**
+	 * Return a taken company to the head of the queue. It is accepted even if the queue has since
+	 * been filled, so it is never dropped.
+	 * @param c The company that could not be consumed
+	 */
+	void requeue(final Company c) {
+		companyQueue.returnFirst(c);
+	}
+
+	/**
+	 * Start an in-process consumer which drains the queue in batches directly into a handler, without
+	 * the REST layer. The batch is deleted from the backing store in bulk once the handler has completed.
+	 * @param handler The handler to receive the companies
+	 * @return The consumer started
+	 */
+	public QConsumer consume(final QHandler handler) {
+		QConsumer consumer = new QConsumer(this, handler);
+
+		synchronized (consumers) {
+			consumers.add(consumer);
+		}
+
+		consumer.start();
+		return consumer;
+	}
 	
 	/**
-	 * Re-synchronise the queue with its underlying data store
+	 * Non-blocking variant of add: the caller's thread is never parked. The company is persisted on the
+	 * persistence pool and then queued, waiting as a future (not a thread) if the queue is full. A full
+	 * consumer group log fails the add at once with a GroupLogFullException rather than parking a
+	 * thread. Cancelling the returned future withdraws a company still waiting for space and removes
+	 * its row.
+	 * @param c The company to add
+	 * @param timeout How long to wait if the queue is full
+	 * @return A future completed with the company once queued, or with a QueueFullException
+	 */
+	public CompletableFuture<Company> addAsync(final Company c, final Long timeout) {
+		final CompletableFuture<Company> result = new CompletableFuture<>();
+		final AtomicReference<CompletableFuture<Void>> waiting = new AtomicReference<>();
+		final AtomicBoolean saved = new AtomicBoolean();
+
+		CompletableFuture.runAsync(() -> {
+			reserveNow(c);
+			companyRepository.save(c);
+			saved.set(true);
+		}, persistence)
+				.thenCompose(v -> {
+					CompletableFuture<Void> put = companyQueue.offerAsync(c);
+					waiting.set(put);
+					if (result.isCancelled()) {
+						withdrawOffer(put);
+					}
+					return within(put, timeout, () -> companyQueue.cancelOffer(put), QueueFullException::new);
+				})
+				.thenRun(() -> log.commit(c))
+				.whenComplete((v, t) -> {
+					if (t == null) {
+						result.complete(c);
+						return;
+					}
+
+					log.abort(c);
+					result.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+					if (saved.get()) {
+						persistence.execute(() -> {
+							try {
+								companyRepository.delete(c);
+							} catch (Exception e) {
+							}
+						});
+					}
+				});
+
+		result.whenComplete((v, t) -> {
+			if (result.isCancelled() && waiting.get() != null) {
+				withdrawOffer(waiting.get());
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Non-blocking variant of get: the caller's thread is never parked. Waiting for an entry costs a
+	 * queued future only and the backing store is updated on the persistence pool. Cancelling the
+	 * returned future withdraws the waiting taker; a company handed over at the same moment is
+	 * returned to the head of the queue rather than lost.
+	 * @param timeout How long to wait if the queue is empty
+	 * @return A future completed with the company, or with a QueueEmptyException
+	 */
+	public CompletableFuture<Company> getAsync(final Long timeout) {
+		final CompletableFuture<Company> result = new CompletableFuture<>();
+		final CompletableFuture<Company> take = companyQueue.pollAsync();
+
+		within(take, timeout, () -> companyQueue.cancelPoll(take), QueueEmptyException::new)
+				.whenCompleteAsync((c, t) -> {
+					if (t != null) {
+						result.completeExceptionally(t);
+					} else if (result.complete(c)) {
+						try {
+							release(c);
+						} catch (Exception e) {
+						}
+					} else {
+						companyQueue.returnFirst(c);
+					}
+				}, persistence);
+
+		result.whenComplete((c, t) -> {
+			if (result.isCancelled()) {
+				companyQueue.cancelPoll(take);
+			}
+		});
+
+		return result;
+	}
+
+	private void reserveNow(final Company c) {
+		try {
+			if (log.reserve(c, 0, TimeUnit.SECONDS)) {
+				return;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(new QueueFullException());
+		}
+		throw new CompletionException(new GroupLogFullException());
+	}
+
+	private void withdrawOffer(final CompletableFuture<Void> put) {
+		if (companyQueue.cancelOffer(put)) {
+			put.completeExceptionally(new CancellationException());
+		}
+	}
+
+	/**
+	 * Fail a waiting future once its timeout passes, provided it can still be withdrawn from the queue
+	 */
+	private <T> CompletableFuture<T> within(final CompletableFuture<T> f, final Long timeout,
+			final BooleanSupplier withdraw, final Supplier<Exception> expired) {
+		if (!f.isDone()) {
+			Runnable expire = () -> {
+				if (withdraw.getAsBoolean()) {
+					f.completeExceptionally(expired.get());
+				}
+			};
+
+			if (timeout == null || timeout <= 0) {
+				expire.run();
+			} else {
+				timer.schedule(expire, timeout, TimeUnit.SECONDS);
+			}
+		}
+
+		return f;
+	}
+
+	/**
+	 * Register a push consumer. Companies are pushed to subscribers in turn as they are
+	 * enqueued, but only while a subscriber holds credit. The subscriber is told its id before
+	 * the subscription is registered, so that notification always precedes the first delivery.
+	 * @param subscriber The callback to receive the companies
+	 * @param prefetch The initial credit window
+	 * @return The subscription created
+	 */
+	public QSubscription subscribe(final QSubscriber subscriber, final int prefetch) {
+		if (prefetch < 1)
+			throw new IllegalArgumentException("A prefetch must be greater than 0");
+
+		QSubscription s = new QSubscription(subscriber, prefetch);
+		subscriber.opened(s.getId());
+
+		synchronized (subscriptions) {
+			subscriptions.add(s);
+			if (dispatcher == null) {
+				dispatcher = new Thread(this::dispatch, "QService-dispatcher");
+				dispatcher.setDaemon(true);
+				dispatcher.start();
+			}
+			subscriptions.notifyAll();
+		}
+
+		return s;
+	}
+
+	/**
+	 * Extend the credit window of a subscription
+	 * @param id The subscription id
+	 * @param n The number of further companies the subscriber is willing to receive
+	 * @return false if the subscription is not known
+	 */
+	public boolean grant(final String id, final int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("Credit must be greater than 0");
+
+		synchronized (subscriptions) {
+			for (QSubscription s : subscriptions) {
+				if (s.getId().equals(id)) {
+					s.grant(n);
+					subscriptions.notifyAll();
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Remove a push consumer
+	 * @param id The subscription id
+	 * @return false if the subscription is not known
+	 */
+	public boolean unsubscribe(final String id) {
+		QSubscription removed = null;
+
+		synchronized (subscriptions) {
+			for (QSubscription s : subscriptions) {
+				if (s.getId().equals(id)) {
+					removed = s;
+					break;
+				}
+			}
+			if (removed != null) {
+				subscriptions.remove(removed);
+			}
+		}
+
+		if (removed == null) {
+			return false;
+		}
+
+		removed.cancel();
+		return true;
+	}
+
+	/**
+	 * Stop pushing to subscribers, stop in-process consumers and release the worker threads
+	 */
+	@PreDestroy
+	public void shutdown() {
+		synchronized (subscriptions) {
+			if (dispatcher != null) {
+				dispatcher.interrupt();
+				dispatcher = null;
+			}
+		}
+		synchronized (consumers) {
+			consumers.forEach(QConsumer::stop);
+			consumers.clear();
+		}
+		timer.shutdownNow();
+		pushers.shutdown();
+		persistence.shutdown();
+	}
+
+	/**
+	 * Dispatcher loop: take the next idle subscriber holding credit (round robin) and hand
+	 * it the next company. The push and the removal from the backing store run on the push
+	 * pool, one at a time per subscriber, so a slow subscriber holds up only itself.
+	 */
+	private void dispatch() {
+		while (!Thread.currentThread().isInterrupted()) {
+			QSubscription s = null;
+			try {
+				s = nextWithCredit();
+
+				Company c = companyQueue.poll(1, TimeUnit.SECONDS);
+				if (c == null) {
+					delivered(s);
+					continue;
+				}
+
+				final QSubscription to = s;
+				try {
+					pushers.execute(() -> push(to, c));
+				} catch (RejectedExecutionException ree) {
+					companyQueue.returnFirst(c);
+					delivered(s);
+				}
+			} catch (InterruptedException ie) {
+				if (s != null) {
+					delivered(s);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Push a company to a subscriber. A company rejected by a failed subscriber is returned to
+	 * the head of the queue, so ordering is preserved and it remains available to the next
+	 * subscriber or to any other consumer.
+	 */
+	private void push(final QSubscription s, final Company c) {
+		try {
+			if (s.push(c)) {
+				release(c);
+			} else {
+				companyQueue.returnFirst(c);
+				unsubscribe(s.getId());
+			}
+		} catch (Exception e) {
+		} finally {
+			delivered(s);
+		}
+	}
+
+	private void delivered(final QSubscription s) {
+		synchronized (subscriptions) {
+			s.setDelivering(false);
+			subscriptions.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait for an idle subscriber with credit, starting after the one last served, and mark it
+	 * as delivering
+	 * @return The subscriber to be pushed to
+	 * @throws InterruptedException
+	 */
+	private QSubscription nextWithCredit() throws InterruptedException {
+		synchronized (subscriptions) {
+			while (true) {
+				int n = subscriptions.size();
+				for (int i = 0; i < n; i++) {
+					int idx = (nextSubscriber + i) % n;
+					QSubscription s = subscriptions.get(idx);
+					if (s.hasCredit() && !s.isDelivering()) {
+						nextSubscriber = idx + 1;
+						s.setDelivering(true);
+						return s;
+					}
+				}
+				subscriptions.wait();
+			}
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Re-synchronise the queue and the consumer group log with their underlying data store. Companies
+	 * consumed from the queue are restored to the log only, while a group still has to read them.
+	 * Offsets no group still holds are cleared, since the restored log may reuse them. The capacity is
+	 * raised if needed so that every company still to be consumed is queued again.
 	 * @throws Exception
 	 */
 	public void synchronise() throws Exception {
 		this.purge();
-		Iterable<Company> companies = this.companyRepository.findAll();
-		
+
+		Map<String, Long> offsets = new LinkedHashMap<>();
+		for (ConsumerGroup g : this.groupRepository.findAll()) {
+			offsets.put(g.getName(), g.getNextOffset());
+		}
+		long earliest = offsets.values().stream().mapToLong(Long::longValue).min().orElse(Long.MAX_VALUE);
+
+		List<Company> companies = new ArrayList<>();
+		List<Company> retained = new ArrayList<>();
+		for (Company c : this.companyRepository.findAll()) {
+			companies.add(c);
+			if (c.getLogOffset() != null && c.getLogOffset() >= earliest) {
+				retained.add(c);
+			}
+		}
+
+		// Restore the log before the queue so that a consumer cannot release a company a group still needs
+		log.restore(offsets, retained);
+
+		// The queue may have been resized at runtime, so make room for every company still to be consumed
+		long pending = companies.stream().filter(c -> !c.isConsumed()).count();
+		if (pending > companyQueue.getCapacity()) {
+			LOG.warn("Queue capacity raised from {} to {} to recover every entry", companyQueue.getCapacity(), pending);
+			companyQueue.setCapacity((int) pending);
+		}
+
 		for (Company c:companies) {
-			companyQueue.offer(c);
-			System.out.println("Recovered " + c.getName());
+			boolean stale = c.getLogOffset() != null && c.getLogOffset() < earliest;
+			if (!c.isConsumed()) {
+				// No group holds this offset any more and the log may hand it out again, so forget it
+				if (stale) {
+					c.setLogOffset(null);
+					companyRepository.save(c);
+				}
+				if (companyQueue.offer(c)) {
+					LOG.info("Recovered {}", c.getName());
+				} else {
+					LOG.error("{} could not be recovered to the queue", c.getName());
+				}
+			} else if (c.getLogOffset() == null || stale) {
+				companyRepository.delete(c);
+			}
 		}
 	}
 }
@@ -0,0 +1,31 @@
+package custq;
+
+/**
+ * Callback through which the queue pushes companies to a subscribed consumer
+ * @author regen
+ *
+ */
+@FunctionalInterface
+public interface QSubscriber {
+
+	/**
+	 * Deliver a company to the subscriber
+	 * @param c The company taken from the queue
+	 * @throws Exception if the subscriber can no longer accept deliveries
+	 */
+	void deliver(Company c) throws Exception;
+
+	/**
+	 * Notification of the subscription id, made before the subscription holds any credit and so before
+	 * any company can be delivered
+	 * @param id The subscription id
+	 */
+	default void opened(String id) {
+	}
+
+	/**
+	 * Notification that the subscription has been removed and no further companies will be pushed
+	 */
+	default void closed() {
+	}
+}
@@ -0,0 +1,84 @@
+package custq;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A registered push consumer along with its remaining credit. A company is only pushed
+ * to the subscriber while it holds credit, so a slow consumer can never have more than
+ * its granted window outstanding.
+ * @author regen
+ *
+ */
+public class QSubscription {
+
+	private final String id = UUID.randomUUID().toString();
+
+	private final QSubscriber subscriber;
+
+	private final AtomicInteger credit;
+
+	private volatile boolean cancelled = false;
+
+	// Set under the service's subscription list: a company is being pushed, so no other may be sent yet
+	private volatile boolean delivering = false;
+
+	QSubscription(final QSubscriber subscriber, final int credit) {
+		this.subscriber = subscriber;
+		this.credit = new AtomicInteger(credit);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getCredit() {
+		return credit.get();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	void grant(final int n) {
+		credit.addAndGet(n);
+	}
+
+	void cancel() {
+		cancelled = true;
+		subscriber.closed();
+	}
+
+	boolean hasCredit() {
+		return !cancelled && credit.get() > 0;
+	}
+
+	boolean isDelivering() {
+		return delivering;
+	}
+
+	void setDelivering(final boolean delivering) {
+		this.delivering = delivering;
+	}
+
+	/**
+	 * Push a company to the subscriber, consuming one unit of credit
+	 * @param c The company to push
+	 * @return true if the subscriber accepted the company
+	 */
+	boolean push(final Company c) {
+		if (cancelled) {
+			return false;
+		}
+
+		credit.decrementAndGet();
+		try {
+			subscriber.deliver(c);
+		} catch (Exception e) {
+			cancelled = true;
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,4 @@
+package custq;
+
+public class UnknownGroupException extends Exception {
+}
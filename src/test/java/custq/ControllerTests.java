@@ -16,16 +16,22 @@
 package custq;
 
 import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.hamcrest.Matchers.hasSize;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -37,6 +43,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -50,6 +57,9 @@ public class ControllerTests {
 	@Autowired
 	private QService qservice;
 
+	@Autowired
+	private QConfig qconfig;
+
 	/**
 	 * Ensure that a new single company can be added to the queue
 	 * @throws Exception
@@ -159,7 +169,210 @@ public class ControllerTests {
 		.andExpect(jsonPath("$.[1].name").value("GavWebCo2"))
 		.andExpect(jsonPath("$.[2].name").value("GavWebCo3"))
 		.andExpect(jsonPath("$.[3].name").value("GavWebCo4"));
-		
+
+		this.mockMvc
+		.perform(get("/queueManager/getCompanies/4").param("minSize", "2").param("timeout", "1")
+				.contentType(MediaType.APPLICATION_JSON))
+		.andDo(print()).andExpect(status().isOk())
+		.andExpect(jsonPath("$",hasSize(1)))
+		.andExpect(jsonPath("$.[0].name").value("GavWebCo5"));
+
+		this.mockMvc
+		.perform(get("/queueManager/getCompanies/4").param("minSize", "5").contentType(MediaType.APPLICATION_JSON))
+		.andDo(print()).andExpect(status().isBadRequest());
+	}
+
+	/**
+	 * Ensure that credit cannot be granted to an unknown subscription
+	 * @throws Exception
+	 */
+	@Test
+	public void t5GrantUnknownSubscription() throws Exception {
+		this.mockMvc
+		.perform(post("/queueManager/subscriptions/unknown/credit").param("n", "5"))
+		.andDo(print()).andExpect(status().isNotFound());
+	}
+
+	/**
+	 * Ensure that queued companies can be browsed without being removed
+	 * @throws Exception
+	 */
+	@Test
+	public void t6BrowseQueue() throws Exception {
+		qservice.purge();
+
+		this.mockMvc
+		.perform(post("/queueManager/addCompany").param("timeout", "5").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"name\":\"BrowseCo\",\"description\":\"The final description\",\"number\":\"075416699\"}"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").isNumber());
+
+		this.mockMvc
+		.perform(get("/queueManager/peekCompanies/3"))
+		.andDo(print()).andExpect(status().isOk())
+		.andExpect(jsonPath("$",hasSize(1)))
+		.andExpect(jsonPath("$.[0].name").value("BrowseCo"));
+
+		this.mockMvc
+		.perform(get("/queueManager/findByNumber/075416699"))
+		.andDo(print()).andExpect(status().isOk())
+		.andExpect(jsonPath("$",hasSize(1)));
+
+		this.mockMvc
+		.perform(get("/queueManager/findByName/Brow"))
+		.andDo(print()).andExpect(status().isOk())
+		.andExpect(jsonPath("$",hasSize(1)));
+
+		this.mockMvc
+		.perform(get("/queueManager/depth"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").value(1));
+	}
+
+	/**
+	 * Ensure that the asynchronous API waits for an entry without holding the request
+	 * @throws Exception
+	 */
+	@Test
+	public void t7AsyncRoundTrip() throws Exception {
+		qservice.purge();
+
+		MvcResult getResult = this.mockMvc
+				.perform(get("/async/queueManager/getCompany").param("timeout", "5").contentType(MediaType.APPLICATION_JSON))
+				.andExpect(request().asyncStarted()).andReturn();
+
+		MvcResult addResult = this.mockMvc
+				.perform(post("/async/queueManager/addCompany").param("timeout", "5").contentType(MediaType.APPLICATION_JSON)
+						.content("{\"name\":\"AsyncCo\",\"description\":\"The final description\",\"number\":\"075416634\"}"))
+				.andExpect(request().asyncStarted()).andReturn();
+
+		this.mockMvc.perform(asyncDispatch(addResult))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").isNumber());
+
+		this.mockMvc.perform(asyncDispatch(getResult))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$.name").value("AsyncCo"));
+
+		MvcResult emptyResult = this.mockMvc
+				.perform(get("/async/queueManager/getCompany").contentType(MediaType.APPLICATION_JSON))
+				.andExpect(request().asyncStarted()).andReturn();
+
+		this.mockMvc.perform(asyncDispatch(emptyResult))
+		.andDo(print()).andExpect(status().isRequestTimeout());
+	}
+
+	/**
+	 * Ensure that a consumer group can read companies without removing them from the queue
+	 * @throws Exception
+	 */
+	@Test
+	public void t8ConsumerGroup() throws Exception {
+		qservice.purge();
+
+		this.mockMvc.perform(put("/queueManager/groups/audit")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc.perform(put("/queueManager/groups/audit")).andDo(print()).andExpect(status().isConflict());
+
+		this.mockMvc
+		.perform(post("/queueManager/addCompany").param("timeout", "5").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"name\":\"GroupCo\",\"description\":\"The final description\",\"number\":\"075416634\"}"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").isNumber());
+
+		this.mockMvc
+		.perform(get("/queueManager/groups/audit/getCompanies/5").param("timeout", "1"))
+		.andDo(print()).andExpect(status().isOk())
+		.andExpect(jsonPath("$",hasSize(1)))
+		.andExpect(jsonPath("$.[0].name").value("GroupCo"));
+
+		this.mockMvc
+		.perform(get("/queueManager/depth"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").value(1));
+
+		//A group that stops reading holds producers back with a distinct status
+		qservice.getLog().setCapacity(1);
+		this.mockMvc
+		.perform(post("/queueManager/addCompany").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"name\":\"GroupCo2\",\"description\":\"The final description\",\"number\":\"075416635\"}"))
+		.andDo(print()).andExpect(status().isOk());
+		this.mockMvc
+		.perform(post("/queueManager/addCompany").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"name\":\"GroupCo3\",\"description\":\"The final description\",\"number\":\"075416636\"}"))
+		.andDo(print()).andExpect(status().isServiceUnavailable());
+		qservice.getLog().setCapacity(QLog.DEFAULT_CAPACITY);
+
+		this.mockMvc.perform(delete("/queueManager/groups/audit")).andDo(print()).andExpect(status().isOk());
+		this.mockMvc
+		.perform(get("/queueManager/groups/audit/getCompanies/5"))
+		.andDo(print()).andExpect(status().isNotFound());
+	}
+
+	/**
+	 * Ensure that the capacity is taken from configuration and can be changed at runtime
+	 * @throws Exception
+	 */
+	@Test
+	public void t9ResizeQueue() throws Exception {
+		this.mockMvc
+		.perform(get("/queueManager/capacity"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").value(qconfig.getMaxEntries()));
+
+		this.mockMvc
+		.perform(put("/queueManager/capacity/8"))
+		.andDo(print()).andExpect(status().isOk()).andExpect(jsonPath("$").value(8));
+
+		this.mockMvc
+		.perform(put("/queueManager/capacity/0"))
+		.andDo(print()).andExpect(status().isBadRequest());
+
+		qservice.resize(qconfig.getMaxEntries());
+	}
+
+	/**
+	 * Ensure that the subscription id is the first event on the stream, even when companies are already
+	 * waiting, and that companies are only pushed while the subscriber holds credit
+	 * @throws Exception
+	 */
+	@Test
+	public void t10SubscribeStream() throws Exception {
+		qservice.purge();
+
+		for (String name : Arrays.asList("PushCo1", "PushCo2")) {
+			this.mockMvc
+			.perform(post("/queueManager/addCompany").contentType(MediaType.APPLICATION_JSON)
+					.content("{\"name\":\"" + name + "\",\"description\":\"The final description\",\"number\":\"075416637\"}"))
+			.andDo(print()).andExpect(status().isOk());
+		}
+
+		MvcResult stream = this.mockMvc
+				.perform(get("/queueManager/subscribe").param("prefetch", "1"))
+				.andExpect(request().asyncStarted()).andReturn();
+
+		String events = awaitEvents(stream, 1);
+		assertTrue("Subscription id not sent first", events.startsWith("event:subscription"));
+		assertTrue("First company not pushed", events.contains("PushCo1") && !events.contains("PushCo2"));
+
+		Thread.sleep(500);
+		assertTrue("Company pushed without credit", awaitEvents(stream, 1).split("event:company").length == 2);
+
+		Matcher id = Pattern.compile("event:subscription\\s+data:(\\S+)").matcher(events);
+		assertTrue("Subscription id not found", id.find());
+		this.mockMvc
+		.perform(post("/queueManager/subscriptions/" + id.group(1) + "/credit").param("n", "1"))
+		.andDo(print()).andExpect(status().isOk());
+		assertTrue("Second company not pushed once credit was granted", awaitEvents(stream, 2).contains("PushCo2"));
+
+		this.mockMvc
+		.perform(delete("/queueManager/subscriptions/" + id.group(1)))
+		.andDo(print()).andExpect(status().isOk());
+	}
+
+	/**
+	 * Wait for a number of companies to be pushed onto an event stream
+	 * @return The stream content so far
+	 */
+	private static String awaitEvents(final MvcResult stream, final int companies) throws Exception {
+		String content = stream.getResponse().getContentAsString();
+		for (int i = 0; i < 50 && content.split("event:company").length <= companies; i++) {
+			Thread.sleep(100);
+			content = stream.getResponse().getContentAsString();
+		}
+		return content;
 	}
 
 	/**
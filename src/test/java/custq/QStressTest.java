@@ -0,0 +1,505 @@
+package custq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Stress harness for the queue. Randomised concurrent add/get/getGroup operations, blocking and
+ * asynchronous, are run against the service and the REST layer alongside an in-process consumer and a
+ * push subscriber. Every operation is recorded in a history, and the history is checked for FIFO
+ * ordering, for takes that came back short or gave up early, and for no loss and no duplication
+ * against the repository. A throughput report is printed for each thread count.
+ *
+ * Configured through system properties, e.g. mvn test -Dtest=QStressTest -Dstress.operations=20000 -Dstress.threads=1,2,4,8,16
+ *   stress.operations  operations per run (default 1000)
+ *   stress.threads     comma separated thread counts for the scaling report (default 1,2,4,8)
+ *   stress.waitPercent percentage of operations that wait 1 second rather than returning at once (default 2)
+ *   stress.timeout     seconds before a run is considered hung (default 120)
+ *   stress.seed        random seed, printed so a failing run can be repeated
+ * @author regen
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class QStressTest {
+
+	private static final int OPERATIONS = Integer.getInteger("stress.operations", 1000);
+
+	private static final String THREADS = System.getProperty("stress.threads", "1,2,4,8");
+
+	private static final int WAIT_PERCENT = Integer.getInteger("stress.waitPercent", 2);
+
+	private static final long RUN_TIMEOUT = Long.getLong("stress.timeout", 120L);
+
+	private static final long SEED = Long.getLong("stress.seed", System.nanoTime());
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private QService qservice;
+
+	@Autowired
+	private CompanyRepository companyRepository;
+
+	@Before
+	public void clean() {
+		qservice.purge();
+		companyRepository.deleteAll();
+	}
+
+	/**
+	 * Run the service directly at each configured thread count, verifying each history and reporting throughput
+	 * @throws Exception
+	 */
+	@Test
+	public void serviceStress() throws Exception {
+		List<String> report = new ArrayList<>();
+		report.add(String.format("%8s %10s %10s %14s %8s", "threads", "ops", "millis", "ops/sec", "added"));
+
+		for (int threads : threadCounts()) {
+			clean();
+			long start = System.nanoTime();
+			List<Op> history = run(new ServiceClient(), threads);
+			long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+			int added = verify(history);
+			report.add(String.format("%8d %10d %10d %14.1f %8d", threads, OPERATIONS, millis,
+					OPERATIONS * 1000.0 / millis, added));
+		}
+
+		System.out.println("QService scaling report (seed " + SEED + ")");
+		report.forEach(System.out::println);
+	}
+
+	/**
+	 * Run the REST layer at the highest configured thread count and verify the history
+	 * @throws Exception
+	 */
+	@Test
+	public void restStress() throws Exception {
+		int threads = threadCounts().stream().max(Integer::compare).orElse(1);
+
+		long start = System.nanoTime();
+		List<Op> history = run(new RestClient(), threads);
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		int added = verify(history);
+		System.out.println(String.format("REST layer (seed %d): %d threads, %d ops in %d ms (%.1f ops/sec), %d added",
+				SEED, threads, OPERATIONS, millis, OPERATIONS * 1000.0 / millis, added));
+	}
+
+	/**
+	 * Run the randomised workload against an in-process consumer and a push subscriber, then drain
+	 * whatever remains, recording every operation. When a background consumer takes a company is not
+	 * known, so its take is recorded as spanning the run up to the moment the company was received.
+	 * @param client The route into the queue
+	 * @param threads The number of concurrent workers
+	 * @return The complete history
+	 * @throws Exception
+	 */
+	private List<Op> run(final QueueClient client, final int threads) throws Exception {
+		final ConcurrentLinkedQueue<Op> history = new ConcurrentLinkedQueue<>();
+		final long runStart = System.nanoTime();
+
+		QConsumer consumer = qservice.consume(new QHandler() {
+			@Override
+			public void handle(Company c) {
+				history.add(new Op(OpType.CONSUMED, 1, 1, 0, runStart, System.nanoTime(), Collections.singletonList(c.getId())));
+			}
+
+			@Override
+			public int getParallelism() {
+				return 2;
+			}
+
+			@Override
+			public int getBatchSize() {
+				return 4;
+			}
+		});
+
+		final AtomicReference<String> subscriptionId = new AtomicReference<>();
+		QSubscription subscription = qservice.subscribe(new QSubscriber() {
+			@Override
+			public void opened(String id) {
+				subscriptionId.set(id);
+			}
+
+			@Override
+			public void deliver(Company c) {
+				history.add(new Op(OpType.CONSUMED, 1, 1, 0, runStart, System.nanoTime(), Collections.singletonList(c.getId())));
+				qservice.grant(subscriptionId.get(), 1);
+			}
+		}, 2);
+
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+
+		for (int w = 0; w < threads; w++) {
+			final Random random = new Random(SEED + w);
+			final int ops = OPERATIONS / threads + (w < OPERATIONS % threads ? 1 : 0);
+
+			results.add(workers.submit(() -> {
+				for (int i = 0; i < ops; i++) {
+					history.add(step(client, random));
+				}
+				return null;
+			}));
+		}
+
+		workers.shutdown();
+		if (!workers.awaitTermination(RUN_TIMEOUT, TimeUnit.SECONDS)) {
+			workers.shutdownNow();
+			fail("Stress run did not complete within " + RUN_TIMEOUT + " seconds (seed " + SEED + ")");
+		}
+		for (Future<?> f : results) {
+			f.get();
+		}
+
+		//Stop the background consumers first; a push cut short returns its company to the queue
+		consumer.stop();
+		qservice.unsubscribe(subscription.getId());
+		while (subscription.isDelivering()) {
+			Thread.sleep(1);
+		}
+
+		//Drain the remainder so that every successful add should be accounted for
+		Op drained;
+		do {
+			long start = System.nanoTime();
+			List<Long> ids = client.takeGroup(10, 1, 0);
+			drained = new Op(OpType.GROUP, 10, 1, 0, start, System.nanoTime(), ids);
+			history.add(drained);
+		} while (!drained.ids.isEmpty());
+
+		return new ArrayList<>(history);
+	}
+
+	/**
+	 * Perform a single random operation
+	 */
+	private Op step(final QueueClient client, final Random random) throws Exception {
+		int choice = random.nextInt(100);
+		long timeout = random.nextInt(100) < WAIT_PERCENT ? 1 : 0;
+		boolean async = random.nextInt(4) == 0;
+		long start = System.nanoTime();
+
+		if (choice < 45) {
+			Company c = new Company("StressCo", "Stress description", "0" + random.nextInt(99999999));
+			Long id = async ? client.addAsync(c, timeout) : client.add(c, timeout);
+			List<Long> ids = id == null ? Collections.emptyList() : Collections.singletonList(id);
+			return new Op(OpType.ADD, 1, 1, timeout, start, System.nanoTime(), ids);
+		} else if (choice < 85) {
+			List<Long> ids = async ? client.takeAsync(timeout) : client.take(timeout);
+			return new Op(OpType.GET, 1, 1, timeout, start, System.nanoTime(), ids);
+		} else {
+			int size = 1 + random.nextInt(4);
+			int minSize = 1 + random.nextInt(size);
+			List<Long> ids = client.takeGroup(size, minSize, timeout);
+			return new Op(OpType.GROUP, size, minSize, timeout, start, System.nanoTime(), ids);
+		}
+	}
+
+	/**
+	 * Check the history for phantom, duplicate, lost and out of order entries, for takes that came back
+	 * short while an entry was available throughout, and for operations that gave up before their timeout
+	 * @param history The recorded operations
+	 * @return The number of successful adds
+	 */
+	private int verify(final List<Op> history) throws InterruptedException {
+		Map<Long, Op> adds = new HashMap<>();
+		Map<Long, Op> takenBy = new HashMap<>();
+		Map<Long, Integer> position = new HashMap<>();
+
+		for (Op op : history) {
+			if (op.type == OpType.ADD) {
+				for (Long id : op.ids) {
+					assertNull("Id " + id + " assigned twice (seed " + SEED + ")", adds.put(id, op));
+				}
+			}
+		}
+
+		for (Op op : history) {
+			if (op.type != OpType.ADD) {
+				for (int i = 0; i < op.ids.size(); i++) {
+					Long id = op.ids.get(i);
+					Op add = adds.get(id);
+					assertTrue("Id " + id + " taken but never added (seed " + SEED + ")", add != null);
+					assertTrue("Id " + id + " taken before it was added (seed " + SEED + ")", add.start <= op.end);
+					assertNull("Id " + id + " taken twice (seed " + SEED + ")", takenBy.put(id, op));
+					position.put(id, i);
+				}
+			}
+		}
+
+		List<Long> lost = adds.keySet().stream().filter(id -> !takenBy.containsKey(id)).collect(Collectors.toList());
+		assertTrue("Entries lost " + lost + " (seed " + SEED + ")", lost.isEmpty());
+
+		//Asynchronous and pushed takes remove their rows after handing the company over
+		for (int i = 0; i < 100 && companyRepository.count() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals("Orphan rows left in the repository (seed " + SEED + ")", 0, companyRepository.count());
+
+		//An operation that fell short of its minimum must have waited out its timeout
+		for (Op op : history) {
+			assertTrue(op.type + " gave up after " + TimeUnit.NANOSECONDS.toMillis(op.end - op.start) + "ms of a "
+					+ op.timeout + "s timeout (seed " + SEED + ")",
+					op.ids.size() >= op.minimum || op.end - op.start >= TimeUnit.SECONDS.toNanos(op.timeout));
+		}
+
+		//A take that returned fewer entries than it asked for saw the queue empty at some point, so no
+		//entry may have been added before it began and still be untaken when it ended
+		for (Op op : history) {
+			if (op.type == OpType.ADD || op.ids.size() >= op.requested) {
+				continue;
+			}
+
+			for (Map.Entry<Long, Op> add : adds.entrySet()) {
+				Op take = takenBy.get(add.getKey());
+				assertTrue("Take returned " + op.ids.size() + " of " + op.requested + " while id " + add.getKey()
+						+ " was available (seed " + SEED + ")", add.getValue().end >= op.start || take.start <= op.end);
+			}
+		}
+
+		//If add(a) completed before add(b) began then b may not be taken before a
+		List<Long> byAddEnd = new ArrayList<>(adds.keySet());
+		byAddEnd.sort(Comparator.comparingLong(id -> adds.get(id).end));
+		for (int i = 0; i < byAddEnd.size(); i++) {
+			Long a = byAddEnd.get(i);
+			Op addA = adds.get(a);
+			Op takeA = takenBy.get(a);
+
+			for (int j = i + 1; j < byAddEnd.size(); j++) {
+				Long b = byAddEnd.get(j);
+				if (adds.get(b).start <= addA.end) {
+					continue;
+				}
+
+				Op takeB = takenBy.get(b);
+				if (takeA == takeB) {
+					assertTrue("Ids " + a + "," + b + " reordered within a group (seed " + SEED + ")",
+							position.get(a) < position.get(b));
+				} else {
+					assertTrue("Id " + b + " overtook " + a + " (seed " + SEED + ")", takeB.end >= takeA.start);
+				}
+			}
+		}
+
+		return adds.size();
+	}
+
+	private static List<Integer> threadCounts() {
+		return Arrays.stream(THREADS.split(",")).map(String::trim).map(Integer::valueOf).collect(Collectors.toList());
+	}
+
+	private enum OpType {
+		ADD, GET, GROUP, CONSUMED
+	}
+
+	/**
+	 * A completed operation: its real time interval, the number of entries it asked for, the number it
+	 * would wait for and for how long, and the ids it added or took
+	 */
+	private static class Op {
+		private final OpType type;
+		private final int requested;
+		private final int minimum;
+		private final long timeout;
+		private final long start;
+		private final long end;
+		private final List<Long> ids;
+
+		Op(final OpType type, final int requested, final int minimum, final long timeout, final long start,
+				final long end, final List<Long> ids) {
+			this.type = type;
+			this.requested = requested;
+			this.minimum = minimum;
+			this.timeout = timeout;
+			this.start = start;
+			this.end = end;
+			this.ids = ids;
+		}
+	}
+
+	/**
+	 * Route into the queue under test
+	 */
+	private interface QueueClient {
+		/**
+		 * @return the id added or null if the queue was full
+		 */
+		Long add(Company c, long timeout) throws Exception;
+
+		Long addAsync(Company c, long timeout) throws Exception;
+
+		/**
+		 * @return the id taken, or an empty list if the queue was empty
+		 */
+		List<Long> take(long timeout) throws Exception;
+
+		List<Long> takeAsync(long timeout) throws Exception;
+
+		List<Long> takeGroup(int size, int minSize, long timeout) throws Exception;
+	}
+
+	private class ServiceClient implements QueueClient {
+
+		@Override
+		public Long add(Company c, long timeout) throws Exception {
+			try {
+				qservice.add(c, timeout);
+				return c.getId();
+			} catch (QueueFullException qfe) {
+				return null;
+			}
+		}
+
+		@Override
+		public Long addAsync(Company c, long timeout) throws Exception {
+			try {
+				return qservice.addAsync(c, timeout).join().getId();
+			} catch (CompletionException ce) {
+				if (ce.getCause() instanceof QueueFullException) {
+					return null;
+				}
+				throw ce;
+			}
+		}
+
+		@Override
+		public List<Long> take(long timeout) throws Exception {
+			try {
+				return Collections.singletonList(qservice.get(timeout).getId());
+			} catch (QueueEmptyException qee) {
+				return Collections.emptyList();
+			}
+		}
+
+		@Override
+		public List<Long> takeAsync(long timeout) throws Exception {
+			try {
+				return Collections.singletonList(qservice.getAsync(timeout).join().getId());
+			} catch (CompletionException ce) {
+				if (ce.getCause() instanceof QueueEmptyException) {
+					return Collections.emptyList();
+				}
+				throw ce;
+			}
+		}
+
+		@Override
+		public List<Long> takeGroup(int size, int minSize, long timeout) throws Exception {
+			return qservice.getGroup(size, minSize, timeout).stream().map(Company::getId).collect(Collectors.toList());
+		}
+	}
+
+	private class RestClient implements QueueClient {
+
+		@Override
+		public Long add(Company c, long timeout) throws Exception {
+			return added(mockMvc.perform(addRequest("/queueManager/addCompany", c, timeout)).andReturn().getResponse());
+		}
+
+		@Override
+		public Long addAsync(Company c, long timeout) throws Exception {
+			MvcResult result = mockMvc.perform(addRequest("/async/queueManager/addCompany", c, timeout)).andReturn();
+			return added(mockMvc.perform(asyncDispatch(result)).andReturn().getResponse());
+		}
+
+		@Override
+		public List<Long> take(long timeout) throws Exception {
+			return taken(mockMvc.perform(takeRequest("/queueManager/getCompany", timeout)).andReturn().getResponse());
+		}
+
+		@Override
+		public List<Long> takeAsync(long timeout) throws Exception {
+			MvcResult result = mockMvc.perform(takeRequest("/async/queueManager/getCompany", timeout)).andReturn();
+			return taken(mockMvc.perform(asyncDispatch(result)).andReturn().getResponse());
+		}
+
+		@Override
+		public List<Long> takeGroup(int size, int minSize, long timeout) throws Exception {
+			MockHttpServletResponse response = mockMvc
+					.perform(get("/queueManager/getCompanies/" + size).param("minSize", Integer.toString(minSize))
+							.param("timeout", Long.toString(timeout)).contentType(MediaType.APPLICATION_JSON))
+					.andReturn().getResponse();
+
+			assertEquals("Unexpected group response", HttpStatus.OK.value(), response.getStatus());
+			List<Long> ids = new ArrayList<>();
+			for (JsonNode c : mapper.readTree(response.getContentAsString())) {
+				ids.add(c.get("id").asLong());
+			}
+			return ids;
+		}
+
+		private MockHttpServletRequestBuilder addRequest(String path, Company c, long timeout) {
+			return post(path).param("timeout", Long.toString(timeout)).contentType(MediaType.APPLICATION_JSON)
+					.content("{\"name\":\"" + c.getName() + "\",\"description\":\"" + c.getDescription()
+							+ "\",\"number\":\"" + c.getNumber() + "\"}");
+		}
+
+		private MockHttpServletRequestBuilder takeRequest(String path, long timeout) {
+			return get(path).param("timeout", Long.toString(timeout)).contentType(MediaType.APPLICATION_JSON);
+		}
+
+		private Long added(MockHttpServletResponse response) throws Exception {
+			if (response.getStatus() == HttpStatus.REQUEST_TIMEOUT.value()) {
+				return null;
+			}
+			assertEquals("Unexpected add response", HttpStatus.OK.value(), response.getStatus());
+			return Long.valueOf(response.getContentAsString());
+		}
+
+		private List<Long> taken(MockHttpServletResponse response) throws Exception {
+			if (response.getStatus() == HttpStatus.REQUEST_TIMEOUT.value()) {
+				return Collections.emptyList();
+			}
+			assertEquals("Unexpected get response", HttpStatus.OK.value(), response.getStatus());
+			return Collections.singletonList(mapper.readTree(response.getContentAsString()).get("id").asLong());
+		}
+	}
+}
@@ -1,17 +1,28 @@
 package custq;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,6 +39,9 @@ public class StandaloneQTest {
 	@Mock
 	CompanyRepository companyRepositoryMock;
 
+	@Mock
+	ConsumerGroupRepository groupRepositoryMock;
+
 	//Inject the repo into the QService instance
 	@InjectMocks
 	QService qservice = new QService();
@@ -182,6 +196,73 @@ public class StandaloneQTest {
 				companies.stream().map(c -> c.getId()).reduce(0L,(r,n)->r+n) == 46);
 	}
 	
+	/**
+	 * Ensure that a group waits for its minimum size and is then removed with a single delete
+	 * @throws Exception
+	 */
+	@Test
+	public void getGroupWithWait() throws Exception {
+		qservice.purge();
+
+		Runnable adder = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					for (long id = 40; id < 43; id++) {
+						Thread.sleep(300);
+						qservice.add(new Company(id, "NewCo", "TestCo Description","07423134565"));
+					}
+				} catch (Exception e) {
+					fail("Cannot add company to queue");
+				}
+			}
+		};
+
+		Thread adderThread = new Thread(adder);
+		adderThread.start();
+
+		List<Company> companies = qservice.getGroup(5, 3, 5L);
+		assertTrue("Group did not wait for its minimum size", companies.size() == 3);
+		verify(companyRepositoryMock, times(1)).deleteAll(any());
+
+		//Minimum cannot be reached so whatever is present is returned once the timeout passes
+		qservice.add(new Company(43, "NewCo", "TestCo Description","07423134565"));
+		long start = System.currentTimeMillis();
+		companies = qservice.getGroup(5, 3, 1L);
+		assertTrue("Group did not honour the timeout", companies.size() == 1 && System.currentTimeMillis() - start >= 900);
+	}
+
+	/**
+	 * Ensure that the live queue can be grown and shrunk without losing or reordering entries
+	 * @throws Exception
+	 */
+	@Test
+	public void resizeQueue() throws Exception {
+		fillQueue();
+
+		qservice.resize(7);
+		qservice.add(new Company(15, "TestCo", "TestCo Description","07423134565"));
+		qservice.add(new Company(16, "TestCo", "TestCo Description","07423134565"));
+
+		qservice.resize(3);
+		try {
+			qservice.add(new Company(17, "TestCo", "TestCo Description","07423134565"));
+			fail("Company added beyond the reduced capacity");
+		} catch (QueueFullException qfe) {
+		}
+
+		for (long id = 10; id < 15; id++) {
+			assertTrue("Entries lost or reordered by resize", qservice.get().getId() == id);
+		}
+
+		//Two entries remain, so the reduced capacity now admits one more
+		qservice.add(new Company(17, "TestCo", "TestCo Description","07423134565"));
+		assertTrue("Capacity not applied", qservice.getCapacity() == 3);
+		assertTrue("Entries lost or reordered by resize", qservice.getGroup(5).stream().map(Company::getId)
+				.collect(toList()).equals(Arrays.asList(15L, 16L, 17L)));
+	}
+
 	/**
 	 * Test to ensure that queue synchronisation is correctly achieved
 	 * @throws Exception
@@ -211,6 +292,474 @@ public class StandaloneQTest {
 		assertTrue("Invalid synchonisation of database to Q", dbComps.size() == 0);
 	}
 	
+	/**
+	 * Ensure that synchronisation recovers every entry even if the queue was larger before the restart
+	 * @throws Exception
+	 */
+	@Test
+	public void syncBeyondCapacity() throws Exception {
+		qservice.purge();
+
+		List<Company> rows = new ArrayList<>();
+		for (long id = 20; id < 27; id++) {
+			rows.add(new Company(id, "TestCo", "TestCo Description","07423134565"));
+		}
+		when(companyRepositoryMock.findAll()).thenReturn(rows);
+
+		qservice.synchronise();
+
+		assertTrue("Entries stranded in the backing store", qservice.getIndex().depth() == rows.size());
+		assertTrue("Capacity not raised to hold the recovered entries", qservice.getCapacity() == rows.size());
+	}
+
+	/**
+	 * Ensure that the browse indexes track entries as they are added and removed
+	 * @throws Exception
+	 */
+	@Test
+	public void browseIndex() throws Exception {
+		qservice.purge();
+
+		qservice.add(new Company(30, "Alpha", "TestCo Description","07423134565"));
+		qservice.add(new Company(31, "Beta", "TestCo Description","07423134566"));
+		qservice.add(new Company(32, "Alphabet", "TestCo Description","07423134565"));
+
+		QIndex index = qservice.getIndex();
+		assertTrue("Depth not tracked", index.depth() == 3);
+		assertTrue("Head not in queue order", index.head(2).stream().map(Company::getId).collect(toList())
+				.equals(Arrays.asList(30L, 31L)));
+		assertTrue("Number lookup incorrect", index.findByNumber("07423134565").size() == 2);
+		assertTrue("Name prefix lookup incorrect", index.findByNamePrefix("Alp", 10).size() == 2);
+		assertTrue("Name prefix limit ignored", index.findByNamePrefix("Alp", 1).size() == 1);
+
+		qservice.get();
+		assertTrue("Depth not reduced", index.depth() == 2);
+		assertTrue("Removed entry still indexed", index.findByNumber("07423134565").size() == 1);
+
+		qservice.getGroup(2);
+		assertTrue("Index not emptied", index.depth() == 0 && index.head(5).isEmpty());
+		verify(companyRepositoryMock, times(0)).findAll();
+	}
+
+	/**
+	 * Ensure that a producer waiting on a full queue is not shown by the browse index until it is admitted
+	 * @throws Exception
+	 */
+	@Test
+	public void browseIndexExcludesWaitingProducers() throws Exception {
+		fillQueue();
+
+		Thread adderThread = new Thread(() -> {
+			try {
+				qservice.add(new Company(99, "WaitingCo", "TestCo Description","07423134599"), 3L);
+			} catch (Exception e) {
+				fail("Cannot add company to queue");
+			}
+		});
+		adderThread.start();
+		Thread.sleep(500);
+
+		QIndex index = qservice.getIndex();
+		assertTrue("Waiting producer counted in depth", index.depth() == 5);
+		assertTrue("Waiting producer shown in head", index.findByNumber("07423134599").isEmpty());
+
+		qservice.get();
+		adderThread.join();
+
+		assertTrue("Admitted producer not indexed", index.depth() == 5);
+		assertTrue("Head not in queue order", index.head(5).stream().map(Company::getId).collect(toList())
+				.equals(Arrays.asList(11L, 12L, 13L, 14L, 99L)));
+	}
+
+	/**
+	 * Ensure that asynchronous waiters are completed by the opposite operation rather than a parked thread
+	 * @throws Exception
+	 */
+	@Test
+	public void asyncWaiters() throws Exception {
+		fillQueue();
+		CompletableFuture<Company> put = qservice.addAsync(new Company(61, "AsyncCo", "TestCo Description","07423134565"), 5L);
+		Thread.sleep(500);
+		assertTrue("Putter completed on a full queue", !put.isDone());
+
+		qservice.get();
+		assertTrue("Putter not admitted", put.get(2, TimeUnit.SECONDS).getId() == 61);
+
+		qservice.purge();
+
+		CompletableFuture<Company> take = qservice.getAsync(5L);
+		assertTrue("Taker completed on an empty queue", !take.isDone());
+
+		qservice.add(new Company(60, "AsyncCo", "TestCo Description","07423134565"));
+		assertTrue("Taker not handed the company", take.get(2, TimeUnit.SECONDS).getId() == 60);
+		verify(companyRepositoryMock, timeout(2000).times(2)).delete(isA(Company.class));
+
+		try {
+			qservice.getAsync(0L).join();
+			fail("Taker should have expired");
+		} catch (CompletionException ce) {
+			assertTrue("Incorrect expiry", ce.getCause() instanceof QueueEmptyException);
+		}
+	}
+
+	/**
+	 * Ensure that consumer groups each read every entry from a single shared copy, which is reclaimed
+	 * only once all groups have read past it
+	 * @throws Exception
+	 */
+	@Test
+	public void consumerGroups() throws Exception {
+		qservice.purge();
+		QLog log = qservice.getLog();
+
+		assertTrue("Group not registered", log.register("first") && log.register("second"));
+		assertTrue("Duplicate group registered", !log.register("first"));
+
+		for (long id = 70; id < 73; id++) {
+			qservice.add(new Company(id, "GroupCo", "TestCo Description","07423134565"));
+		}
+
+		List<Company> first = log.read("first", 10, 0, TimeUnit.SECONDS);
+		assertTrue("First group did not read every entry", first.size() == 3);
+		assertTrue("Entries reclaimed before every group read them", log.retained() == 3);
+
+		List<Company> second = log.read("second", 2, 0, TimeUnit.SECONDS);
+		assertTrue("Second group did not read from its own offset", second.size() == 2 && second.get(0) == first.get(0));
+		assertTrue("Entries read by every group not reclaimed", log.retained() == 1);
+		assertTrue("Lag not tracked", log.lag().get("second") == 1 && log.lag().get("first") == 0);
+
+		assertTrue("Queue consumption affected by groups", qservice.getGroup(5).size() == 3);
+
+		assertTrue("Group not removed", log.remove("second"));
+		assertTrue("Removed group still holding entries", log.retained() == 0);
+
+		try {
+			log.read("second", 1, 0, TimeUnit.SECONDS);
+			fail("Removed group could still be read");
+		} catch (UnknownGroupException uge) {
+		}
+		log.remove("first");
+	}
+
+	/**
+	 * Ensure that a full group log holds producers back and that a company consumed from the queue stays
+	 * in the backing store until every group has read it
+	 * @throws Exception
+	 */
+	@Test
+	public void groupRetention() throws Exception {
+		qservice.purge();
+		qservice.getLog().setCapacity(2);
+		assertTrue("Group not registered", qservice.registerGroup("audit"));
+		verify(groupRepositoryMock).save(isA(ConsumerGroup.class));
+
+		Company first = new Company(80, "GroupCo", "TestCo Description","07423134565");
+		qservice.add(first);
+		qservice.add(new Company(81, "GroupCo", "TestCo Description","07423134565"));
+		Company refused = new Company(82, "GroupCo", "TestCo Description","07423134565");
+		try {
+			qservice.add(refused);
+			fail("Full group log accepted an entry");
+		} catch (GroupLogFullException glfe) {
+		}
+		verify(companyRepositoryMock, never()).save(refused);
+		verify(companyRepositoryMock, never()).delete(refused);
+		assertTrue("Queue accepted an entry the group log refused", qservice.getIndex().depth() == 2);
+
+		assertTrue("Queue order not kept", qservice.get() == first);
+		assertTrue("Consumed company not retained for the group", first.isConsumed());
+		verify(companyRepositoryMock, never()).delete(first);
+
+		assertTrue("Group did not read the consumed company", qservice.readGroup("audit", 1, 0L).get(0) == first);
+		verify(companyRepositoryMock, timeout(2000)).delete(first);
+		verify(groupRepositoryMock, times(2)).save(isA(ConsumerGroup.class));
+		qservice.add(new Company(82, "GroupCo", "TestCo Description","07423134565"));
+
+		assertTrue("Group not removed", qservice.removeGroup("audit"));
+		verify(groupRepositoryMock).deleteById("audit");
+		qservice.getLog().setCapacity(QLog.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Ensure that synchronisation restores group offsets and the entries groups have still to read,
+	 * and drops consumed companies no group needs
+	 * @throws Exception
+	 */
+	@Test
+	public void syncGroups() throws Exception {
+		qservice.purge();
+
+		Company stale = new Company(90, "GroupCo", "TestCo Description","07423134565");
+		stale.setLogOffset(2L);
+		stale.setConsumed(true);
+		Company unread = new Company(91, "GroupCo", "TestCo Description","07423134565");
+		unread.setLogOffset(3L);
+		unread.setConsumed(true);
+		Company queued = new Company(92, "GroupCo", "TestCo Description","07423134565");
+		queued.setLogOffset(4L);
+		Company predates = new Company(93, "GroupCo", "TestCo Description","07423134565");
+		predates.setLogOffset(1L);
+
+		when(groupRepositoryMock.findAll()).thenReturn(Arrays.asList(new ConsumerGroup("audit", 3)));
+		when(companyRepositoryMock.findAll()).thenReturn(Arrays.asList(stale, unread, queued, predates));
+
+		qservice.synchronise();
+
+		verify(companyRepositoryMock).delete(stale);
+		assertTrue("Consumed company restored to the queue", qservice.getIndex().depth() == 2);
+		assertTrue("Offset no group holds kept", predates.getLogOffset() == null);
+		verify(companyRepositoryMock).save(predates);
+		List<Company> read = qservice.readGroup("audit", 10, 0L);
+		assertTrue("Group entries not restored", read.size() == 2 && read.get(0) == unread && read.get(1) == queued);
+
+		assertTrue("Group not restored", qservice.removeGroup("audit"));
+		verify(companyRepositoryMock, timeout(2000)).delete(unread);
+		qservice.purge();
+	}
+
+	/**
+	 * Ensure that an in-process consumer handles every company in parallel, acknowledges handled companies
+	 * in bulk and retries failed companies
+	 * @throws Exception
+	 */
+	@Test
+	public void inProcessConsumer() throws Exception {
+		qservice.purge();
+
+		CountDownLatch latch = new CountDownLatch(5);
+		Set<String> workers = ConcurrentHashMap.newKeySet();
+		Set<Long> failedOnce = ConcurrentHashMap.newKeySet();
+
+		QHandler handler = new QHandler() {
+			@Override
+			public void handle(Company c) throws Exception {
+				workers.add(Thread.currentThread().getName());
+				Thread.sleep(100);
+				if (c.getId() == 82 && failedOnce.add(c.getId())) {
+					throw new IllegalStateException("First attempt fails");
+				}
+				latch.countDown();
+			}
+
+			@Override
+			public int getParallelism() {
+				return 3;
+			}
+		};
+
+		for (long id = 80; id < 85; id++) {
+			qservice.add(new Company(id, "HandledCo", "TestCo Description","07423134565"));
+		}
+
+		QConsumer consumer = qservice.consume(handler);
+
+		//The failed company is only counted once its retry succeeds
+		assertTrue("Companies were not all handled", latch.await(5, TimeUnit.SECONDS));
+		assertTrue("Failed company not retried", failedOnce.contains(82L));
+		verify(companyRepositoryMock, timeout(2000).atLeastOnce()).deleteAll(any());
+		verify(companyRepositoryMock, times(0)).delete(isA(Company.class));
+		assertTrue("Handler not run in parallel", workers.size() > 1);
+
+		consumer.stop();
+		assertTrue("Consumer not stopped", !consumer.isRunning());
+	}
+
+	/**
+	 * Ensure that a subscriber blocked in a delivery does not hold up pushes to any other subscriber
+	 * @throws Exception
+	 */
+	@Test
+	public void slowSubscriber() throws Exception {
+		qservice.purge();
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch received = new CountDownLatch(3);
+		QSubscription slow = qservice.subscribe(c -> release.await(), 5);
+		QSubscription fast = qservice.subscribe(c -> received.countDown(), 5);
+
+		for (long id = 110; id < 114; id++) {
+			qservice.add(new Company(id, "PushCo", "TestCo Description","07423134565"));
+		}
+
+		assertTrue("Blocked subscriber held up the others", received.await(2, TimeUnit.SECONDS));
+		release.countDown();
+		qservice.unsubscribe(slow.getId());
+		qservice.unsubscribe(fast.getId());
+		verify(companyRepositoryMock, timeout(2000).times(4)).delete(isA(Company.class));
+	}
+
+	/**
+	 * Ensure that a failing company is kept and retried with a growing delay, and is returned to the
+	 * queue if the consumer stops before it succeeds
+	 * @throws Exception
+	 */
+	@Test
+	public void consumerRetryBackoff() throws Exception {
+		qservice.purge();
+
+		List<Long> attempts = new CopyOnWriteArrayList<>();
+		CountDownLatch handled = new CountDownLatch(1);
+		for (long id = 90; id < 95; id++) {
+			qservice.add(new Company(id, "RetryCo", "TestCo Description","07423134565"));
+		}
+
+		QConsumer consumer = qservice.consume(c -> {
+			if (c.getId() == 90) {
+				attempts.add(System.nanoTime());
+				if (attempts.size() < 3) {
+					throw new IllegalStateException("Attempt fails");
+				}
+				handled.countDown();
+			}
+		});
+
+		assertTrue("Failed company not retried to success", handled.await(5, TimeUnit.SECONDS));
+		assertTrue("Retries not backed off", attempts.get(1) - attempts.get(0) >= TimeUnit.MILLISECONDS.toNanos(100)
+				&& attempts.get(2) - attempts.get(1) >= TimeUnit.MILLISECONDS.toNanos(200));
+		consumer.stop();
+
+		qservice.add(new Company(95, "RetryCo", "TestCo Description","07423134565"));
+		QConsumer failing = qservice.consume(c -> {
+			throw new IllegalStateException("Always fails");
+		});
+		for (int i = 0; i < 50 && qservice.getIndex().depth() > 0; i++) {
+			Thread.sleep(100);
+		}
+		failing.stop();
+
+		assertTrue("Failing company lost when the consumer stopped", qservice.get().getId() == 95);
+	}
+
+	/**
+	 * Ensure that a company which always fails delays only itself, and is given up on after the handler's
+	 * maximum attempts
+	 * @throws Exception
+	 */
+	@Test
+	public void poisonCompany() throws Exception {
+		qservice.purge();
+
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch others = new CountDownLatch(4);
+		QConsumer consumer = qservice.consume(new QHandler() {
+			@Override
+			public void handle(Company c) throws Exception {
+				if (c.getId() == 96) {
+					attempts.incrementAndGet();
+					throw new IllegalStateException("Always fails");
+				}
+				others.countDown();
+			}
+
+			@Override
+			public int getBatchSize() {
+				return 1;
+			}
+
+			@Override
+			public int getMaxAttempts() {
+				return 3;
+			}
+		});
+
+		qservice.add(new Company(96, "PoisonCo", "TestCo Description","07423134565"));
+		for (int i = 0; i < 50 && attempts.get() == 0; i++) {
+			Thread.sleep(10);
+		}
+		for (long id = 97; id < 101; id++) {
+			qservice.add(new Company(id, "HandledCo", "TestCo Description","07423134565"));
+		}
+		assertTrue("Failing company held up the others", others.await(300, TimeUnit.MILLISECONDS));
+
+		for (int i = 0; i < 30 && attempts.get() < 3; i++) {
+			Thread.sleep(100);
+		}
+		Thread.sleep(500);
+		consumer.stop();
+		assertTrue("Attempts not limited", attempts.get() == 3);
+		assertTrue("Abandoned company returned to the queue", qservice.getIndex().depth() == 0);
+	}
+
+	/**
+	 * Ensure that cancelled asynchronous waiters are withdrawn and never consume or admit a company
+	 * @throws Exception
+	 */
+	@Test
+	public void asyncCancellation() throws Exception {
+		fillQueue();
+		CompletableFuture<Company> put = qservice.addAsync(new Company(63, "AsyncCo", "TestCo Description","07423134565"), 5L);
+		Thread.sleep(500);
+		put.cancel(false);
+		qservice.get();
+		assertTrue("Cancelled putter admitted", qservice.getIndex().depth() == 4);
+
+		qservice.purge();
+		CompletableFuture<Company> take = qservice.getAsync(5L);
+		take.cancel(false);
+		qservice.add(new Company(62, "AsyncCo", "TestCo Description","07423134565"));
+		assertTrue("Cancelled taker consumed the company", qservice.get().getId() == 62);
+
+		verify(companyRepositoryMock, timeout(2000).times(3)).delete(isA(Company.class));
+	}
+
+	/**
+	 * Ensure that companies are pushed fairly to subscribers and only within their credit window
+	 * @throws Exception
+	 */
+	@Test
+	public void pushToSubscribers() throws Exception {
+		qservice.purge();
+
+		CountDownLatch latch = new CountDownLatch(4);
+		List<Company> first = new CopyOnWriteArrayList<>();
+		List<Company> second = new CopyOnWriteArrayList<>();
+
+		QSubscription s1 = qservice.subscribe(c -> { first.add(c); latch.countDown(); }, 2);
+		QSubscription s2 = qservice.subscribe(c -> { second.add(c); latch.countDown(); }, 2);
+
+		for (long id = 20; id < 24; id++) {
+			qservice.add(new Company(id, "PushCo", "TestCo Description","07423134565"));
+		}
+
+		assertTrue("Companies were not pushed to subscribers", latch.await(5, TimeUnit.SECONDS));
+		assertTrue("Companies were not shared fairly", first.size() == 2 && second.size() == 2);
+		verify(companyRepositoryMock, timeout(2000).times(4)).delete(isA(Company.class));
+
+		//Credit exhausted so the next entry must stay on the queue
+		qservice.add(new Company(24, "PushCo", "TestCo Description","07423134565"));
+		Thread.sleep(500);
+		assertTrue("Company pushed without credit", qservice.get().getId() == 24);
+
+		qservice.unsubscribe(s1.getId());
+		qservice.unsubscribe(s2.getId());
+		assertTrue("Subscriptions not cancelled", s1.isCancelled() && s2.isCancelled());
+		qservice.shutdown();
+	}
+
+	/**
+	 * Ensure that a company rejected by a failed subscriber is returned to the head of the queue
+	 * @throws Exception
+	 */
+	@Test
+	public void failedSubscriberReturnsCompany() throws Exception {
+		qservice.purge();
+
+		QSubscription s = qservice.subscribe(c -> {
+			throw new IllegalStateException("Client disconnected");
+		}, 5);
+
+		qservice.add(new Company(25, "PushCo", "TestCo Description","07423134565"));
+
+		for (int i = 0; i < 20 && !s.isCancelled(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue("Failed subscription not cancelled", s.isCancelled());
+		assertTrue("Rejected company not back on the queue", qservice.getIndex().depth() == 1);
+		assertTrue("Rejected company not available to other consumers", qservice.get(2L).getId() == 25);
+		verify(companyRepositoryMock, times(1)).delete(isA(Company.class));
+		qservice.shutdown();
+	}
+
 	/**
 	 * Helper method to fill the queue with fun
 	 */